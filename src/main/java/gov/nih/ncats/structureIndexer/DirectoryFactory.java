@@ -0,0 +1,42 @@
+package gov.nih.ncats.structureIndexer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
+import org.apache.lucene.store.NoLockFactory;
+
+/*
+ * creates the Lucene directories (index, codebook and facet) of a
+ * StructureIndexer. locking is left to the indexer, so the directories
+ * are opened with NoLockFactory.
+ */
+@FunctionalInterface
+public interface DirectoryFactory {
+    Directory open (Path path) throws IOException;
+
+    /*
+     * positional reads; the default for writable indexes
+     */
+    DirectoryFactory NIOFS =
+        path -> new NIOFSDirectory (path, NoLockFactory.INSTANCE);
+
+    /*
+     * memory mapped; reads are served from the page cache without a
+     * syscall per access
+     */
+    DirectoryFactory MMAP =
+        path -> new MMapDirectory (path, NoLockFactory.INSTANCE);
+
+    /*
+     * memory mapped and touched on open so that the first queries
+     * don't have to fault the index in
+     */
+    DirectoryFactory MMAP_PRELOAD = path -> {
+        MMapDirectory dir = new MMapDirectory (path, NoLockFactory.INSTANCE);
+        dir.setPreload(true);
+        return dir;
+    };
+}
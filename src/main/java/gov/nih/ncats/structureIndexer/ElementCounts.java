@@ -0,0 +1,129 @@
+package gov.nih.ncats.structureIndexer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.molwitch.isotopes.Elements;
+
+/*
+ * heavy atom counts by element, used to reject substructure candidates
+ * that don't have enough of some element before any graph matching.
+ * counts are kept as (atomic number, count) pairs in order of atomic
+ * number, and in the index as docvalues (see encode).
+ */
+public class ElementCounts {
+    static final int MAX_ELEMENT = 118;
+    static final Pattern ELEMENT = Pattern.compile("([A-Z][a-z]?)([0-9]*)");
+
+    static final Map<String, Integer> ATOMIC_NUMBERS = new HashMap<>();
+    static {
+        for (int i = 1; i <= MAX_ELEMENT; ++i)
+            ATOMIC_NUMBERS.put(Elements.getSymbolByAtomicNumber(i), i);
+    }
+
+    private ElementCounts () {
+    }
+
+    /*
+     * counts (indexed by atomic number) of a Hill formula such as
+     * C4H6CaO4, hydrogens included
+     */
+    public static int[] count (String formula) {
+        int[] counts = new int[MAX_ELEMENT+1];
+        Matcher m = ELEMENT.matcher(formula);
+        while (m.find()) {
+            Integer z = ATOMIC_NUMBERS.get(m.group(1));
+            if (z != null) {
+                String n = m.group(2);
+                counts[z] += n.isEmpty() ? 1 : Integer.parseInt(n);
+            }
+        }
+        return counts;
+    }
+
+    /*
+     * heavy atom pairs of a formula
+     */
+    public static int[] pairs (String formula) {
+        return pairs (count (formula));
+    }
+
+    /*
+     * heavy atom pairs of a query; query atoms, R groups and the like
+     * could match anything so they don't count
+     */
+    public static int[] pairs (Chemical query) {
+        int[] counts = new int[MAX_ELEMENT+1];
+        for (Atom a : query.getAtoms()) {
+            if (a.isQueryAtom() || a.isRGroupAtom() || a.isPseudoAtom()
+                || !a.isValidAtomicSymbol())
+                continue;
+            int z = a.getAtomicNumber();
+            if (z > 0 && z <= MAX_ELEMENT)
+                ++counts[z];
+        }
+        return pairs (counts);
+    }
+
+    static int[] pairs (int[] counts) {
+        int n = 0;
+        for (int z = 2; z < counts.length; ++z)
+            if (counts[z] > 0)
+                ++n;
+        int[] pairs = new int[2*n];
+        for (int z = 2, i = 0; z < counts.length; ++z) {
+            if (counts[z] > 0) {
+                pairs[i++] = z;
+                pairs[i++] = counts[z];
+            }
+        }
+        return pairs;
+    }
+
+    /*
+     * the atomic number as a byte followed by the count as a vint
+     */
+    public static byte[] encode (int[] pairs) {
+        byte[] buf = new byte[3*pairs.length];
+        int pos = 0;
+        for (int i = 0; i < pairs.length; i += 2) {
+            buf[pos++] = (byte)pairs[i];
+            int v = pairs[i+1];
+            for (; (v & ~0x7f) != 0; v >>>= 7)
+                buf[pos++] = (byte)((v & 0x7f) | 0x80);
+            buf[pos++] = (byte)v;
+        }
+        byte[] enc = new byte[pos];
+        System.arraycopy(buf, 0, enc, 0, pos);
+        return enc;
+    }
+
+    /*
+     * true if the encoded target has at least as many atoms of each
+     * element as the query pairs
+     */
+    public static boolean covers (byte[] target, int[] query) {
+        int pos = 0, z = 0, count = 0;
+        for (int i = 0; i < query.length; i += 2) {
+            while (z < query[i]) {
+                if (pos >= target.length)
+                    return false;
+                z = target[pos++];
+                count = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = target[pos++];
+                    count |= (b & 0x7f) << shift;
+                    if (b >= 0)
+                        break;
+                }
+            }
+            if (z != query[i] || count < query[i+1])
+                return false;
+        }
+        return true;
+    }
+}
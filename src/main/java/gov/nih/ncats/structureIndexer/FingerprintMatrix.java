@@ -0,0 +1,492 @@
+package gov.nih.ncats.structureIndexer;
+
+import static gov.nih.ncats.structureIndexer.StructureIndexer.FIELD_FINGERPRINT_SIM;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Logger;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SegmentCommitInfo;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+
+/*
+ * optional sidecar for brute-force similarity search. the similarity
+ * fingerprints of each index segment are packed into long[] rows sorted
+ * by popcount, with an offset table so that a popcount window maps to
+ * one contiguous slice of a memory mapped file. segments are immutable,
+ * so there's one file per segment (named after the segment name and
+ * id); deletes are handled at scan time through the reader's live docs
+ * and files of segments that have been merged away are removed.
+ *
+ * matrices are built in the background; until a segment's matrix is
+ * there, slices() comes back empty handed and the search has to do
+ * without. each matrix must fit in a single mapped buffer (2GB).
+ * read-only instances only map matrices that are already there, and
+ * only files built by this instance are ever removed since another
+ * process may have the others mapped.
+ *
+ * file layout (big endian):
+ *   int magic, int version, int words, int maxpop, int size
+ *   int[maxpop+2] offsets   first row of each popcount
+ *   int[size] docs          segment doc id of each row
+ *   (padding to a multiple of 8 bytes)
+ *   long[size*words] rows
+ */
+public class FingerprintMatrix {
+    static final Logger logger =
+        Logger.getLogger(FingerprintMatrix.class.getName());
+
+    static final int MAGIC = 0x46504d58; // FPMX
+    static final int VERSION = 1;
+    static final String SUFFIX = ".fpm";
+    static final int HEADER = 5*4;
+    // first delay before a failed build is tried again; it doubles with
+    // every failure up to MAX_RETRY_DELAY
+    static final long RETRY_DELAY = 1000l;
+    static final long MAX_RETRY_DELAY = 10*60*1000l;
+
+    public static class Segment {
+        final String name;
+        final int words;
+        final int maxpop;
+        final int size;
+        final IntBuffer offsets;
+        final IntBuffer docs;
+        final LongBuffer rows;
+
+        Segment (String name, ByteBuffer buf) throws IOException {
+            this.name = name;
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION)
+                throw new IOException ("Not a fingerprint matrix: "+name);
+            words = buf.getInt(8);
+            maxpop = buf.getInt(12);
+            size = buf.getInt(16);
+
+            if (words < 0 || maxpop < 0 || size < 0
+                || length (words, maxpop, size) != buf.capacity())
+                throw new IOException ("Bogus fingerprint matrix: "+name);
+
+            int pos = HEADER;
+            offsets = slice(buf, pos, 4*(maxpop+2)).asIntBuffer();
+            pos += 4*(maxpop+2);
+            docs = slice(buf, pos, 4*size).asIntBuffer();
+            pos = (int)align (pos + 4*size);
+            rows = slice(buf, pos, 8*size*words).asLongBuffer();
+        }
+
+        static ByteBuffer slice (ByteBuffer buf, int pos, int len) {
+            ByteBuffer dup = buf.duplicate();
+            dup.position(pos);
+            dup.limit(pos+len);
+            return dup.slice();
+        }
+
+        /*
+         * first row with popcount >= pop
+         */
+        public int start (int pop) {
+            if (pop <= 0)
+                return 0;
+            if (pop > maxpop)
+                return size;
+            return offsets.get(pop);
+        }
+
+        public int doc (int row) { return docs.get(row); }
+        public int size () { return size; }
+        public int words () { return words; }
+        public String getName () { return name; }
+
+        public double tanimoto (int row, long[] q) {
+            int a = 0, b = 0, base = row*words;
+            int n = Math.min(words, q.length), w = 0;
+            for (; w < n; ++w) {
+                long r = rows.get(base+w);
+                a += Long.bitCount(r & q[w]);
+                b += Long.bitCount(r | q[w]);
+            }
+            for (int i = w; i < words; ++i)
+                b += Long.bitCount(rows.get(base+i));
+            for (int i = w; i < q.length; ++i)
+                b += Long.bitCount(q[i]);
+            return b == 0 ? 1. : (double)a/b;
+        }
+
+        public double similarity (int row, long[] q,
+                                  SimilarityMetric metric) {
+            if (metric == SimilarityMetric.TANIMOTO)
+                return tanimoto (row, q);
+            return metric.similarity(q, rows, row*words, words);
+        }
+    }
+
+    /*
+     * contiguous range of rows of a segment within a popcount window
+     */
+    /*
+     * a build that failed and when it can be tried again
+     */
+    static class Failure {
+        final long delay;
+        final long retry;
+        final String reason;
+        volatile boolean reported;
+
+        Failure (long delay, String reason) {
+            this.delay = delay;
+            this.retry = System.currentTimeMillis() + delay;
+            this.reason = reason;
+        }
+    }
+
+    public static class Slice {
+        final Segment segment;
+        final int docBase;
+        final Bits liveDocs;
+        final int start;
+        final int end;
+
+        Slice (Segment segment, int docBase, Bits liveDocs,
+               int start, int end) {
+            this.segment = segment;
+            this.docBase = docBase;
+            this.liveDocs = liveDocs;
+            this.start = start;
+            this.end = end;
+        }
+
+        public int size () { return end - start; }
+    }
+
+    final File dir;
+    final boolean readOnly;
+    final Executor builder;
+    final ConcurrentMap<Object, Segment> segments =
+        new ConcurrentHashMap<Object, Segment>();
+    // file names of the matrices being built and of those built here
+    final Set<String> building = ConcurrentHashMap.newKeySet();
+    final Set<String> created = ConcurrentHashMap.newKeySet();
+    final ConcurrentMap<String, Failure> failures =
+        new ConcurrentHashMap<String, Failure>();
+    volatile boolean closed;
+
+    /**
+     * @param readOnly only map the matrices that are already there
+     * @param builder where the missing matrices are built
+     */
+    public FingerprintMatrix (File dir, boolean readOnly, Executor builder) {
+        if (!dir.exists() && !readOnly)
+            dir.mkdirs();
+        if (dir.exists() && !dir.isDirectory())
+            throw new IllegalArgumentException ("Not a directory: "+dir);
+        this.dir = dir;
+        this.readOnly = readOnly;
+        this.builder = builder;
+    }
+
+    public File getDirectory () { return dir; }
+
+    /**
+     * Return the non-empty slices of every segment of the reader whose
+     * popcount is within [minpop, maxpop], or null if the matrix of
+     * some segment isn't available (yet); the matrix of a segment is
+     * scheduled to be built the first time the segment is seen.
+     */
+    public List<Slice> slices (IndexReader reader, int minpop, int maxpop)
+        throws IOException {
+        List<Slice> slices = new ArrayList<Slice>();
+        boolean complete = true, opened = false;
+        for (LeafReaderContext ctx : reader.leaves()) {
+            LeafReader leaf = ctx.reader();
+            Segment seg = segments.get(leaf.getCoreCacheKey());
+            if (seg == null) {
+                seg = open (leaf);
+                if (seg == null) {
+                    complete = false;
+                    continue;
+                }
+                opened = true;
+            }
+
+            int start = seg.start(minpop);
+            int end = maxpop < Integer.MAX_VALUE
+                ? seg.start(maxpop+1) : seg.size();
+            if (start < end)
+                slices.add(new Slice
+                           (seg, ctx.docBase, leaf.getLiveDocs(), start, end));
+        }
+
+        if (opened)
+            cleanup (reader);
+        return complete ? slices : null;
+    }
+
+    /*
+     * the mapped matrix of the segment, or null if it has yet to be
+     * built
+     */
+    synchronized Segment open (LeafReader leaf) throws IOException {
+        Object key = leaf.getCoreCacheKey();
+        Segment seg = segments.get(key);
+        if (seg == null) {
+            String name = name (leaf);
+            File file = new File (dir, name+SUFFIX);
+            if (!file.exists() || building.contains(file.getName())) {
+                schedule (leaf, file);
+                return null;
+            }
+            seg = map (name, file);
+            segments.put(key, seg);
+            leaf.addCoreClosedListener(k -> segments.remove(k));
+        }
+        return seg;
+    }
+
+    void schedule (LeafReader leaf, File file) {
+        if (readOnly || closed)
+            return;
+        Failure failure = failures.get(file.getName());
+        if (failure != null
+            && System.currentTimeMillis() - failure.retry < 0) {
+            // once per failure, so the log doesn't get one per search
+            if (!failure.reported) {
+                failure.reported = true;
+                logger.warning("Fingerprint matrix "+file.getName()
+                               +" isn't available ("+failure.reason
+                               +"); similarity searches scan the index "
+                               +"until it's retried in "
+                               +(failure.retry - System.currentTimeMillis())
+                               +"ms");
+            }
+            return;
+        }
+        if (!building.add(file.getName()))
+            return;
+        if (!leaf.tryIncRef()) {
+            building.remove(file.getName());
+            return;
+        }
+        try {
+            builder.execute(() -> {
+                    try {
+                        build (leaf, file);
+                        created.add(file.getName());
+                        failures.remove(file.getName());
+                    }
+                    catch (Exception ex) {
+                        Failure last = failures.get(file.getName());
+                        Failure next = new Failure
+                            (last != null ? Math.min
+                             (2*last.delay, MAX_RETRY_DELAY) : RETRY_DELAY,
+                             ex.toString());
+                        failures.put(file.getName(), next);
+                        logger.warning("Can't build fingerprint matrix "
+                                       +file.getName()+" (retrying in "
+                                       +next.delay+"ms): "+ex);
+                    }
+                    finally {
+                        building.remove(file.getName());
+                        decRef (leaf);
+                    }
+                });
+        }
+        catch (RejectedExecutionException ex) {
+            building.remove(file.getName());
+            decRef (leaf);
+        }
+    }
+
+    static void decRef (LeafReader leaf) {
+        try {
+            leaf.decRef();
+        }
+        catch (IOException ex) {
+            logger.warning("Can't release segment "+leaf+": "+ex);
+        }
+    }
+
+    static String name (LeafReader leaf) {
+        if (!(leaf instanceof SegmentReader))
+            throw new IllegalArgumentException
+                ("Not a segment reader: "+leaf);
+        SegmentCommitInfo info = ((SegmentReader)leaf).getSegmentInfo();
+        // segment names can be reused by a writer that was never
+        // committed, so the segment id is part of the file name
+        return info.info.name+"_"+StringHelper.idToString(info.info.getId());
+    }
+
+    static Segment map (String name, File file) throws IOException {
+        try (FileChannel fc = FileChannel.open
+             (file.toPath(), StandardOpenOption.READ)) {
+            return new Segment
+                (name, fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+        }
+    }
+
+    static long align (long pos) {
+        return (pos + 7) & ~7l;
+    }
+
+    /*
+     * file size of a matrix; it must fit in a single mapped buffer
+     */
+    static long length (int words, int maxpop, int size) {
+        return align (HEADER + 4l*(maxpop+2) + 4l*size) + 8l*size*words;
+    }
+
+    static long[] pack (byte[] fp, int words) {
+        long[] row = new long[words];
+        for (int i = 0; i < fp.length && i < 8*words; ++i)
+            row[i/8] |= (fp[i] & 0xffl) << (8*(i%8));
+        return row;
+    }
+
+    static byte[] fingerprint (LeafReader leaf, BinaryDocValues values,
+                               int doc) throws IOException {
+        BytesRef ref = values != null ? values.get(doc) : null;
+        if (ref == null || ref.length == 0) {
+            // document written before the fingerprints were docvalues
+            Document d = leaf.document(doc);
+            ref = d.getBinaryValue(FIELD_FINGERPRINT_SIM);
+            if (ref == null)
+                return new byte[0];
+        }
+        byte[] fp = new byte[ref.length];
+        System.arraycopy(ref.bytes, ref.offset, fp, 0, ref.length);
+        return fp;
+    }
+
+    /*
+     * two passes over the fingerprints, so only the popcounts are held
+     * in memory
+     */
+    void build (LeafReader leaf, File file) throws IOException {
+        long start = System.currentTimeMillis();
+        int size = leaf.maxDoc();
+        BinaryDocValues values =
+            leaf.getBinaryDocValues(FIELD_FINGERPRINT_SIM);
+        int[] pops = new int[size];
+        int words = 0, maxpop = 0;
+        for (int i = 0; i < size; ++i) {
+            byte[] fp = fingerprint (leaf, values, i);
+            pops[i] = StructureIndexer.popcnt(fp);
+            words = Math.max(words, (fp.length+7)/8);
+            maxpop = Math.max(maxpop, pops[i]);
+            checkClosed ();
+        }
+
+        long length = length (words, maxpop, size);
+        if (length > Integer.MAX_VALUE)
+            throw new IOException
+                ("Fingerprint matrix of "+size+" rows of "+words
+                 +" words is too large to map ("+length+" bytes)");
+
+        // counting sort of the rows by popcount
+        int[] offsets = new int[maxpop+2];
+        for (int i = 0; i < size; ++i)
+            ++offsets[pops[i]+1];
+        for (int i = 1; i < offsets.length; ++i)
+            offsets[i] += offsets[i-1];
+        int[] docs = new int[size];
+        int[] next = offsets.clone();
+        for (int i = 0; i < size; ++i)
+            docs[next[pops[i]]++] = i;
+
+        File tmp = new File (file.getParentFile(), file.getName()+".tmp");
+        try (DataOutputStream dos = new DataOutputStream
+             (new BufferedOutputStream (new FileOutputStream (tmp)))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(words);
+            dos.writeInt(maxpop);
+            dos.writeInt(size);
+            for (int off : offsets)
+                dos.writeInt(off);
+            for (int d : docs)
+                dos.writeInt(d);
+            int pos = HEADER + 4*offsets.length + 4*size;
+            for (long pad = align (pos) - pos; pad > 0; --pad)
+                dos.writeByte(0);
+            for (int d : docs) {
+                for (long w : pack (fingerprint (leaf, values, d), words))
+                    dos.writeLong(w);
+                checkClosed ();
+            }
+        }
+        catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        logger.info("## built fingerprint matrix "+file.getName()+" ("
+                    +size+" rows) in "
+                    +String.format("%1$.2fs",
+                                   (System.currentTimeMillis()-start)*1e-3));
+    }
+
+    void checkClosed () throws IOException {
+        if (closed)
+            throw new IOException ("Fingerprint matrix is closed");
+    }
+
+    /*
+     * drop the mapped matrices of segments that are no longer part of
+     * the index and remove the files of those built here. the buffers
+     * are unmapped once they're garbage; unmapping them outright would
+     * crash a scan that still has a slice of one. a search over an
+     * older reader simply maps the file again.
+     */
+    void cleanup (IndexReader reader) {
+        Set<String> live = new HashSet<String>();
+        for (LeafReaderContext ctx : reader.leaves())
+            live.add(name (ctx.reader())+SUFFIX);
+        segments.values().removeIf
+            (seg -> !live.contains(seg.getName()+SUFFIX));
+        if (readOnly)
+            return;
+        live.addAll(building);
+
+        for (String name : created) {
+            if (!live.contains(name)) {
+                created.remove(name);
+                File f = new File (dir, name);
+                if (f.exists() && !f.delete())
+                    logger.warning("Can't delete stale matrix "+f);
+            }
+        }
+    }
+
+    public void close () {
+        closed = true;
+        segments.clear();
+        failures.clear();
+    }
+}
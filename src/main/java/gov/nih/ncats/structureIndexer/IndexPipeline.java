@@ -0,0 +1,186 @@
+package gov.nih.ncats.structureIndexer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.structureIndexer.StructureIndexer.IndexRecord;
+
+/*
+ * multi-stage bulk ingest pipeline:
+ *   parse (caller thread) -> instrument (N workers) -> write (1 thread)
+ * the stages are connected by a bounded queue of futures which are
+ * consumed in submission order, so records are written in the same
+ * order they were parsed.
+ */
+public class IndexPipeline implements Closeable {
+    static final Logger logger =
+        Logger.getLogger(IndexPipeline.class.getName());
+
+    static final int DEFAULT_BATCH_SIZE = 256;
+    static final Future<IndexRecord> POISON_RECORD =
+        new FutureTask<IndexRecord>(() -> null);
+
+    final StructureIndexer indexer;
+    final ExecutorService workers;
+    final BlockingQueue<Future<IndexRecord>> queue;
+    final Thread writer;
+    final int batchSize;
+    final AtomicLong count = new AtomicLong ();
+    final AtomicLong failed = new AtomicLong ();
+
+    volatile IOException error;
+    boolean closed;
+
+    public IndexPipeline (StructureIndexer indexer, int nthreads) {
+        this (indexer, nthreads, DEFAULT_BATCH_SIZE);
+    }
+
+    public IndexPipeline (StructureIndexer indexer,
+                          int nthreads, int batchSize) {
+        if (indexer == null)
+            throw new IllegalArgumentException ("Indexer is null");
+        if (nthreads < 1)
+            throw new IllegalArgumentException
+                ("Invalid number of threads: "+nthreads);
+        if (batchSize < 1)
+            throw new IllegalArgumentException
+                ("Invalid batch size: "+batchSize);
+
+        this.indexer = indexer;
+        this.batchSize = batchSize;
+        workers = Executors.newFixedThreadPool(nthreads);
+        // enough room to keep every worker busy while the writer is
+        // committing a full batch
+        queue = new ArrayBlockingQueue<Future<IndexRecord>>
+            (Math.max(4*nthreads, 2*batchSize));
+        writer = new Thread (this::write, "IndexPipeline-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a structure for indexing; blocks if the pipeline is full.
+     */
+    public void add (String source, String id, Chemical chem)
+        throws IOException {
+        add (new IndexRecord (source, id, chem));
+    }
+
+    public void add (final IndexRecord rec) throws IOException {
+        if (closed)
+            throw new IllegalStateException ("Pipeline is closed!");
+        if (error != null)
+            throw error;
+
+        Future<IndexRecord> f = workers.submit
+            (() -> indexer.instrument(rec));
+        try {
+            while (!queue.offer(f, 1, TimeUnit.SECONDS)) {
+                if (error != null) {
+                    f.cancel(true);
+                    throw error;
+                }
+            }
+        }
+        catch (InterruptedException ex) {
+            f.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException
+                ("Interrupted while queueing "+rec.getId(), ex);
+        }
+    }
+
+    void write () {
+        List<IndexRecord> batch = new ArrayList<IndexRecord>(batchSize);
+        try {
+            for (Future<IndexRecord> f; (f = queue.take()) != POISON_RECORD;) {
+                append (batch, f);
+                // grab whatever is already done without waiting
+                for (Future<IndexRecord> next; batch.size() < batchSize
+                         && (next = queue.peek()) != null
+                         && next != POISON_RECORD && next.isDone(); ) {
+                    append (batch, queue.poll());
+                }
+
+                if (batch.size() >= batchSize || queue.isEmpty())
+                    flush (batch);
+            }
+            flush (batch);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        catch (Throwable ex) {
+            // anything else (lucene throws a number of runtime
+            // exceptions) would otherwise kill the writer silently and
+            // leave add() and close() waiting on a full queue
+            error = ex instanceof IOException ? (IOException)ex
+                : new IOException ("Can't write batch", ex);
+            // unblock the producer; the error is reported on the next
+            // call to add() or close()
+            queue.clear();
+        }
+    }
+
+    void append (List<IndexRecord> batch, Future<IndexRecord> f)
+        throws InterruptedException {
+        try {
+            batch.add(f.get());
+        }
+        catch (ExecutionException ex) {
+            failed.incrementAndGet();
+            logger.warning("Can't instrument structure: "+ex.getCause());
+        }
+    }
+
+    void flush (List<IndexRecord> batch) throws IOException {
+        if (!batch.isEmpty()) {
+            indexer.write(batch);
+            count.addAndGet(batch.size());
+            batch.clear();
+        }
+    }
+
+    public long getCount () { return count.get(); }
+    public long getFailedCount () { return failed.get(); }
+
+    /**
+     * Wait for all queued structures to be written and release the
+     * worker threads.
+     */
+    public void close () throws IOException {
+        if (closed)
+            return;
+        closed = true;
+
+        try {
+            while (error == null
+                   && !queue.offer(POISON_RECORD, 1, TimeUnit.SECONDS))
+                ;
+            writer.join();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            writer.interrupt();
+        }
+        finally {
+            workers.shutdownNow();
+        }
+
+        if (error != null)
+            throw error;
+    }
+}
@@ -2,39 +2,172 @@ package gov.nih.ncats.structureIndexer;
 
 import java.io.IOException;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 import gov.nih.ncats.molwitch.Chemical;
 import gov.nih.ncats.molwitch.search.MolSearcher;
 import gov.nih.ncats.molwitch.search.MolSearcherFactory;
 
 public class IsoMorphismSearcher {
-
 	private final Chemical query;
 	private MolSearcher molSearcher;
+	// compiled query and its matching order, shared by every target;
+	// only the VF2 matcher needs them, so they're built on first use
+	private final double[] frequencies;
+	private MolGraph graph;
+	private int[] order;
+	private boolean vf2;
+
+	// per target budget; 0 for no limit
+	private long maxSteps;
+	private long maxNanos;
+	private boolean timedOut;
 
 	public IsoMorphismSearcher(Chemical query) {
+		this(query, MatchOrder.DEFAULT);
+	}
+
+	/**
+	 * @param frequencies element frequencies of the targets, indexed by
+	 *        atomic number; used to plan the order in which query atoms
+	 *        are matched
+	 */
+	public IsoMorphismSearcher(Chemical query, double[] frequencies) {
+		this(query, null, null, frequencies,
+				MolSearcherFactory.create(Objects.requireNonNull(query))
+				.orElse(null));
+	}
+
+	/*
+	 * over an already prepared query; molSearcher is null if there's no
+	 * backend searcher for it, and graph and order can be null if the
+	 * VF2 matcher isn't expected to be needed
+	 */
+	IsoMorphismSearcher(Chemical query, MolGraph graph, int[] order,
+			MolSearcher molSearcher) {
+		this(query, graph, order, MatchOrder.DEFAULT, molSearcher);
+	}
+
+	private IsoMorphismSearcher(Chemical query, MolGraph graph, int[] order,
+			double[] frequencies, MolSearcher molSearcher) {
 		Objects.requireNonNull(query);
 		this.query = query;
-		molSearcher = MolSearcherFactory.create(query).orElse(null);
+		this.graph = graph;
+		this.order = order;
+		this.frequencies = frequencies;
+		this.molSearcher = molSearcher;
 	}
-	
+
+	/*
+	 * the compiled query and matching order to use with the VF2
+	 * matcher, e.g. as planned from the element frequencies of an index
+	 */
+	void setPlan(MolGraph graph, int[] order){
+		this.graph = graph;
+		this.order = order;
+	}
+
+	/**
+	 * Verify with the VF2 matcher even if there's a backend MolSearcher
+	 * for the query. VF2 compares elements, aromaticity and bond types
+	 * (query atoms and bonds without a type match anything) but not
+	 * charges, isotopes or stereo.
+	 */
+	public IsoMorphismSearcher setVF2(boolean vf2){
+		this.vf2 = vf2;
+		return this;
+	}
+
+	/**
+	 * Limit the work spent on a single target, either as the number of
+	 * states explored or as elapsed time; the matcher gives up once
+	 * it's spent and isTimedOut() is set. The backend MolSearcher can't
+	 * be interrupted, so findMax() verifies with VF2 whenever there's a
+	 * budget or a query deadline.
+	 */
+	public IsoMorphismSearcher setTargetBudget(long maxSteps, long maxMillis){
+		this.maxSteps = maxSteps;
+		this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+		return this;
+	}
+
+	/*
+	 * true if the last target was abandoned before the search was
+	 * complete
+	 */
+	public boolean isTimedOut(){
+		return timedOut;
+	}
+
 	public int[][] search(Chemical target){
-		return VFLib3.subgraphIsomorphism(query, target)
+		return search(target, 0);
+	}
+
+	/*
+	 * up to max (<= 0 for all) embeddings onto distinct sets of target
+	 * atoms
+	 */
+	public int[][] findUnique(Chemical target, int max){
+		return search(target, max, 0);
+	}
+
+	int[][] search(Chemical target, long deadline){
+		return search(target, 0, deadline);
+	}
+
+	int[][] search(Chemical target, int max, long deadline){
+		VFLib3 vf = matcher(target, deadline);
+		int[][] hits = vf.findUnique(max);
+		timedOut = vf.isExhausted();
+		return hits;
+	}
+
+	private VFLib3 matcher(Chemical target, long deadline){
+		if(graph == null){
+			graph = MolGraph.compile(query);
+			order = MatchOrder.plan(graph, frequencies);
+		}
+		return VFLib3.subgraphIsomorphism(graph, MolGraph.compile(target), order)
+				.setStepLimit(maxSteps)
+				.setDeadline(targetDeadline(deadline));
+	}
 
-				.findAll(true);
+	/*
+	 * the earlier of the query deadline and the per target time budget
+	 */
+	private long targetDeadline(long deadline){
+		if(maxNanos <= 0){
+			return deadline;
+		}
+		long d = System.nanoTime() + maxNanos;
+		return deadline != 0 && deadline - d < 0 ? deadline : d;
 	}
-	
+
 	public int[] findMax(Chemical target){
-	  
-		if(molSearcher == null){
-			int[][] search = search(target);
-			if(search.length >0) {
-				return search[0];
-			}
-			return new int[0];
+		return findMax(target, 0);
+	}
+
+	/**
+	 * @param deadline the query deadline in System.nanoTime() terms,
+	 *        or 0 for none
+	 */
+	public int[] findMax(Chemical target, long deadline){
+		timedOut = false;
+		if(molSearcher == null || vf2 || isBounded(deadline)){
+			// only the first embedding is needed
+			VFLib3 vf = matcher(target, deadline);
+			int[] hit = vf.findFirst();
+			timedOut = vf.isExhausted();
+			return hit != null ? hit : new int[0];
 		}
 		return molSearcher.search(target).orElse(new int[0]);
+	}
 
+	/*
+	 * true if the search of a target has to stop early; only VF2 can
+	 */
+	boolean isBounded(long deadline){
+		return maxSteps > 0 || maxNanos > 0 || deadline != 0;
 	}
-	
+
 }
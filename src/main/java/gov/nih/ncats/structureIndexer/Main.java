@@ -14,6 +14,7 @@ public class Main {
     File index;
     String idField;
     boolean listSource;
+    int nthreads = Runtime.getRuntime().availableProcessors();
     List<File> files = new ArrayList<File>();
     
     public Main (String[] argv) throws IOException {
@@ -34,6 +35,31 @@ public class Main {
                 case 'l':
                     listSource = true;
                     break;
+
+                case 'j': {
+                    String arg;
+                    if (argv[i].length() > 2)
+                        arg = argv[i].substring(2);
+                    else if (i+1 < argv.length)
+                        arg = argv[++i];
+                    else {
+                        logger.warning("No thread count given for -j!");
+                        usage ();
+                        break;
+                    }
+                    try {
+                        nthreads = Integer.parseInt(arg);
+                        if (nthreads < 1) {
+                            logger.warning("Invalid number of threads: "
+                                           +nthreads+"; using 1");
+                            nthreads = 1;
+                        }
+                    }
+                    catch (NumberFormatException ex) {
+                        logger.warning("Bogus thread count: "+arg);
+                    }
+                    break;
+                }
                     
                 default:
                     logger.warning("Unknown option: "+argv[i]);
@@ -77,22 +103,27 @@ public class Main {
                 logger.info("Adding structures to index "+index+"...");
             
             long start = System.currentTimeMillis(), total = 0;
-            for (File f : files) {
-            	 int count = 0;
-            	 String source = getSourceNameFrom(f);
-            	 try(ThrowingStream<Chemical> stream = ChemicalReaderFactory.newReader(f).stream()){
-            		 stream.throwingForEach(chem ->{
-	                    String id = chem.getName();
-	                    if (id == null) {
-	                    	id = String.format("%1$010d", count+1);
-	                    }
-	                    
-	                    indexer.add(source, id, chem);
-	                });
-            	 }
-                logger.info(f.getName()+": "+count+"/"+indexer.size());
-                total += count;
+            try (IndexPipeline pipeline = new IndexPipeline (indexer, nthreads)) {
+                for (File f : files) {
+                    final int[] count = {0};
+                    String source = getSourceNameFrom(f);
+                    try(ThrowingStream<Chemical> stream = ChemicalReaderFactory.newReader(f).stream()){
+                        stream.throwingForEach(chem ->{
+                            String id = chem.getName();
+                            ++count[0];
+                            if (id == null) {
+                                id = String.format("%1$010d", count[0]);
+                            }
+                            
+                            pipeline.add(source, id, chem);
+                        });
+                    }
+                    logger.info(f.getName()+": "+count[0]+" structure(s) queued");
+                    total += count[0];
+                }
             }
+            if (total > 0)
+                logger.info("Index size: "+indexer.size());
             
             if (total > 0) {
                 logger.info("Indexing time "+String.format
@@ -129,6 +160,9 @@ public class Main {
                    +"not specified,");
         ps.println("   an autoincrement value is used");
         ps.println("-l print all the source filenames that have been indexed");
+        ps.println("-j THREADS  number of threads used to instrument "
+                   +"structures (default: "
+                   +Runtime.getRuntime().availableProcessors()+")");
         System.exit(1);
     }
     
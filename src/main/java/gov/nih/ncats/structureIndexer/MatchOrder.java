@@ -0,0 +1,218 @@
+package gov.nih.ncats.structureIndexer;
+
+import static gov.nih.ncats.structureIndexer.StructureIndexer.FIELD_FORMULA;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+/*
+ * VF2++ style matching order of the query atoms. the root of each
+ * connected component is its rarest atom (ties broken by ring
+ * membership and degree), and the rest of the component follows in
+ * breadth first levels; within a level the atom with the most
+ * neighbors already in the order goes first, then by rarity, ring
+ * membership and degree. every atom except a root therefore has a
+ * neighbor earlier in the order, which is what VF2State relies on to
+ * pick query atoms straight from the order.
+ *
+ * element frequencies come from the molecular formulas in the index,
+ * counted once per segment.
+ */
+public class MatchOrder {
+    static final int MAX_ELEMENT = ElementCounts.MAX_ELEMENT;
+
+    /*
+     * rough heavy atom frequencies of drug-like molecules, used when
+     * the index has no formulas
+     */
+    static final double[] DEFAULT = new double[MAX_ELEMENT+1];
+    static {
+        Arrays.fill(DEFAULT, 1e-5);
+        DEFAULT[6] = .72; // C
+        DEFAULT[8] = .12; // O
+        DEFAULT[7] = .11; // N
+        DEFAULT[16] = .017; // S
+        DEFAULT[9] = .015; // F
+        DEFAULT[17] = .01; // Cl
+        DEFAULT[35] = .002; // Br
+        DEFAULT[15] = .001; // P
+        DEFAULT[53] = .0005; // I
+        DEFAULT[1] = .0005; // explicit H
+    }
+
+    final ConcurrentMap<Object, long[]> counts =
+        new ConcurrentHashMap<Object, long[]>();
+
+    public MatchOrder () {
+    }
+
+    /**
+     * Element frequencies (indexed by atomic number) over all documents
+     * of the reader; deleted documents are still counted.
+     */
+    public double[] frequencies (IndexReader reader) throws IOException {
+        long[] total = new long[MAX_ELEMENT+1];
+        for (LeafReaderContext ctx : reader.leaves()) {
+            long[] c = counts (ctx.reader());
+            for (int i = 0; i < total.length; ++i)
+                total[i] += c[i];
+        }
+
+        long sum = 0l;
+        for (long c : total)
+            sum += c;
+        if (sum == 0l)
+            return DEFAULT.clone();
+
+        double[] freq = new double[total.length];
+        for (int i = 0; i < freq.length; ++i)
+            freq[i] = (double)total[i]/sum;
+        return freq;
+    }
+
+    long[] counts (LeafReader leaf) throws IOException {
+        Object key = leaf.getCoreCacheKey();
+        long[] c = counts.get(key);
+        if (c == null) {
+            c = new long[MAX_ELEMENT+1];
+            Terms terms = leaf.terms(FIELD_FORMULA);
+            if (terms != null) {
+                TermsEnum te = terms.iterator();
+                for (BytesRef term; (term = te.next()) != null; )
+                    count (c, term.utf8ToString(), te.docFreq());
+            }
+            if (counts.putIfAbsent(key, c) == null)
+                leaf.addCoreClosedListener(k -> counts.remove(k));
+        }
+        return c;
+    }
+
+    static void count (long[] c, String formula, int docFreq) {
+        int[] counts = ElementCounts.count(formula);
+        for (int z = 0; z < counts.length; ++z)
+            c[z] += (long)docFreq * counts[z];
+    }
+
+    public void clear () {
+        counts.clear();
+    }
+
+    /**
+     * Matching order of the atoms of the query graph given the element
+     * frequencies (indexed by atomic number); elements that aren't
+     * covered count as the rarest. query atoms without an atomic number
+     * match any atom, so they count as the most common.
+     */
+    public static int[] plan (MolGraph q, double[] freq) {
+        int n = q.size;
+        double[] rarity = new double[n];
+        for (int i = 0; i < n; ++i) {
+            int z = q.anum[i];
+            rarity[i] = z == 0 ? 1.
+                : z > 0 && z < freq.length ? freq[z] : 0.;
+        }
+        boolean[] ring = rings (q);
+
+        int[] order = new int[n];
+        int[] conn = new int[n]; // neighbors already in the order
+        boolean[] seen = new boolean[n];
+        boolean[] done = new boolean[n];
+        int[] level = new int[n], next = new int[n];
+        int size = 0;
+        while (size < n) {
+            int root = -1;
+            for (int i = 0; i < n; ++i)
+                if (!seen[i] && (root < 0
+                                 || compare (q, rarity, ring, i, root) < 0))
+                    root = i;
+            seen[root] = true;
+            level[0] = root;
+            int nlevel = 1;
+
+            while (nlevel > 0) {
+                // greedily order the level
+                for (int k = 0; k < nlevel; ++k) {
+                    int best = -1;
+                    for (int j = 0; j < nlevel; ++j) {
+                        int a = level[j];
+                        if (!done[a] && (best < 0 || conn[a] > conn[best]
+                                         || (conn[a] == conn[best]
+                                             && compare (q, rarity, ring,
+                                                         a, best) < 0)))
+                            best = a;
+                    }
+                    done[best] = true;
+                    order[size++] = best;
+                    for (int e = q.start[best]; e < q.start[best+1]; ++e)
+                        ++conn[q.nbr[e]];
+                }
+
+                int nnext = 0;
+                for (int j = 0; j < nlevel; ++j) {
+                    int a = level[j];
+                    for (int e = q.start[a]; e < q.start[a+1]; ++e) {
+                        int b = q.nbr[e];
+                        if (!seen[b]) {
+                            seen[b] = true;
+                            next[nnext++] = b;
+                        }
+                    }
+                }
+                int[] t = level;
+                level = next;
+                next = t;
+                nlevel = nnext;
+            }
+        }
+        return order;
+    }
+
+    /*
+     * rarer first, then ring atoms, then higher degree
+     */
+    static int compare (MolGraph q, double[] rarity, boolean[] ring,
+                        int a, int b) {
+        if (rarity[a] != rarity[b])
+            return rarity[a] < rarity[b] ? -1 : 1;
+        if (ring[a] != ring[b])
+            return ring[a] ? -1 : 1;
+        return q.degree(b) - q.degree(a);
+    }
+
+    /*
+     * atoms that survive repeatedly stripping the terminal atoms; these
+     * are the ring atoms and the chains linking rings
+     */
+    static boolean[] rings (MolGraph q) {
+        int n = q.size;
+        int[] deg = new int[n];
+        int[] stack = new int[n];
+        int sp = 0;
+        boolean[] ring = new boolean[n];
+        for (int i = 0; i < n; ++i) {
+            ring[i] = true;
+            deg[i] = q.degree(i);
+            if (deg[i] <= 1)
+                stack[sp++] = i;
+        }
+        while (sp > 0) {
+            int a = stack[--sp];
+            ring[a] = false;
+            for (int e = q.start[a]; e < q.start[a+1]; ++e) {
+                int b = q.nbr[e];
+                if (ring[b] && --deg[b] == 1)
+                    stack[sp++] = b;
+            }
+        }
+        return ring;
+    }
+}
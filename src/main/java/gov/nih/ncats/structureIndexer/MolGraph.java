@@ -0,0 +1,76 @@
+package gov.nih.ncats.structureIndexer;
+
+import java.util.List;
+
+import gov.nih.ncats.molwitch.Atom;
+import gov.nih.ncats.molwitch.Bond;
+import gov.nih.ncats.molwitch.Chemical;
+
+/*
+ * a molecule compiled into primitive arrays for graph matching. the
+ * adjacency is in compressed sparse row form: the neighbors of atom i
+ * are nbr[start[i]] .. nbr[start[i+1]-1] and bond[k] is the type code
+ * (BondType ordinal) of the bond to nbr[k].
+ */
+public final class MolGraph {
+    // query bonds without a type
+    static final byte ANY_BOND = -1;
+
+    final int size;
+    final int[] start;
+    final int[] nbr;
+    final byte[] bond;
+    final int[] anum; // atomic numbers
+    final byte[] arom; // 1 if the atom has an aromatic bond
+
+    MolGraph (int size, int[] start, int[] nbr, byte[] bond,
+              int[] anum, byte[] arom) {
+        this.size = size;
+        this.start = start;
+        this.nbr = nbr;
+        this.bond = bond;
+        this.anum = anum;
+        this.arom = arom;
+    }
+
+    public static MolGraph compile (Chemical m) {
+        int size = m.getAtomCount();
+        int[] start = new int[size+1];
+        int[] anum = new int[size];
+        byte[] arom = new byte[size];
+        Atom[] atoms = new Atom[size];
+        for (int i = 0; i < size; ++i) {
+            Atom a = atoms[i] = m.getAtom(i);
+            start[i+1] = start[i] + a.getBonds().size();
+            // query atoms (any atom, lists, R groups) have no atomic number
+            anum[i] = a.isValidAtomicSymbol() ? a.getAtomicNumber() : 0;
+            arom[i] = (byte)(a.hasAromaticBond() ? 1 : 0);
+        }
+
+        int[] nbr = new int[start[size]];
+        byte[] bond = new byte[start[size]];
+        for (int i = 0; i < size; ++i) {
+            List<? extends Bond> bonds = atoms[i].getBonds();
+            for (int j = 0, k = start[i]; j < bonds.size(); ++j, ++k) {
+                Bond b = bonds.get(j);
+                nbr[k] = m.indexOf(b.getOtherAtom(atoms[i]));
+                Bond.BondType type = b.getBondType();
+                bond[k] = type != null ? (byte)type.ordinal() : ANY_BOND;
+            }
+        }
+        return new MolGraph (size, start, nbr, bond, anum, arom);
+    }
+
+    public int size () { return size; }
+    public int degree (int i) { return start[i+1] - start[i]; }
+
+    /*
+     * adjacency slot of the bond between atoms a and b, or -1
+     */
+    public int slot (int a, int b) {
+        for (int k = start[a]; k < start[a+1]; ++k)
+            if (nbr[k] == b)
+                return k;
+        return -1;
+    }
+}
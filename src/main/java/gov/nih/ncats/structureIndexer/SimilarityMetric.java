@@ -0,0 +1,176 @@
+package gov.nih.ncats.structureIndexer;
+
+import java.nio.LongBuffer;
+
+/*
+ * fingerprint similarity in terms of the number of bits in common (a)
+ * and the popcounts of the query (q) and target (t). besides the score
+ * each metric gives the window of target popcounts that can reach a
+ * threshold, which is what the similarity search screens on; since
+ * a <= min(q,t), the best a target of popcount t can do is
+ * similarity(min(q,t), q, t). the metrics here all grow with a, so
+ * any other upper bound on a (e.g., the per block one of BlockBound)
+ * bounds the similarity too.
+ */
+public interface SimilarityMetric {
+    double similarity (int a, int q, int t);
+
+    /*
+     * smallest target popcount that can reach the threshold
+     */
+    int minPopcount (int q, double threshold);
+
+    /*
+     * largest target popcount that can reach the threshold, or
+     * Integer.MAX_VALUE if there's no limit
+     */
+    int maxPopcount (int q, double threshold);
+
+    default double bound (int q, int t) {
+        return similarity (Math.min(q, t), q, t);
+    }
+
+    default double similarity (byte[] q, byte[] t) {
+        return similarity (q, t, 0, t.length);
+    }
+
+    /*
+     * the query against t[offset, offset+length); the shorter one is
+     * taken as padded with zeros
+     */
+    default double similarity (byte[] q, byte[] t, int offset, int length) {
+        int a = 0, qc = 0, tc = 0;
+        for (int i = 0; i < q.length || i < length; ++i) {
+            int x = i < q.length ? q[i] & 0xff : 0;
+            int y = i < length ? t[offset+i] & 0xff : 0;
+            a += Integer.bitCount(x & y);
+            qc += Integer.bitCount(x);
+            tc += Integer.bitCount(y);
+        }
+        return similarity (a, qc, tc);
+    }
+
+    /*
+     * the query against words [base, base+words) of a matrix row
+     */
+    default double similarity (long[] q, LongBuffer rows, int base,
+                               int words) {
+        int a = 0, qc = 0, tc = 0;
+        for (int w = 0; w < q.length || w < words; ++w) {
+            long x = w < q.length ? q[w] : 0l;
+            long y = w < words ? rows.get(base+w) : 0l;
+            a += Long.bitCount(x & y);
+            qc += Long.bitCount(x);
+            tc += Long.bitCount(y);
+        }
+        return similarity (a, qc, tc);
+    }
+
+    /*
+     * two empty fingerprints are identical, like
+     * Fingerprint.tanimotoSimilarity has it
+     */
+    static double ratio (double num, double den, int q, int t) {
+        return den > 0. ? num/den : (q == 0 && t == 0 ? 1. : 0.);
+    }
+
+    /*
+     * popcounts as the smallest/largest integer on the right side of a
+     * real bound; the slack keeps rounding error from excluding an
+     * exact hit
+     */
+    static int ceil (double x) {
+        return Math.max(0, (int)Math.ceil(x - 1e-9));
+    }
+
+    static int floor (double x) {
+        return x >= Integer.MAX_VALUE ? Integer.MAX_VALUE
+            : (int)Math.floor(x + 1e-9);
+    }
+
+    /*
+     * a/(q+t-a); t in [Tq, q/T]
+     */
+    SimilarityMetric TANIMOTO = new SimilarityMetric () {
+        public double similarity (int a, int q, int t) {
+            return ratio (a, q + t - a, q, t);
+        }
+        public int minPopcount (int q, double threshold) {
+            return ceil (q*threshold);
+        }
+        public int maxPopcount (int q, double threshold) {
+            return threshold > 0. ? floor (q/threshold) : Integer.MAX_VALUE;
+        }
+        public String toString () { return "Tanimoto"; }
+    };
+
+    /*
+     * 2a/(q+t); t in [Tq/(2-T), q(2-T)/T]
+     */
+    SimilarityMetric DICE = new SimilarityMetric () {
+        public double similarity (int a, int q, int t) {
+            return ratio (2.*a, q + t, q, t);
+        }
+        public int minPopcount (int q, double threshold) {
+            return ceil (q*threshold/(2. - threshold));
+        }
+        public int maxPopcount (int q, double threshold) {
+            return threshold > 0. ? floor (q*(2. - threshold)/threshold)
+                : Integer.MAX_VALUE;
+        }
+        public String toString () { return "Dice"; }
+    };
+
+    /*
+     * a/sqrt(qt); t in [T^2 q, q/T^2]
+     */
+    SimilarityMetric COSINE = new SimilarityMetric () {
+        public double similarity (int a, int q, int t) {
+            return ratio (a, Math.sqrt((double)q*t), q, t);
+        }
+        public int minPopcount (int q, double threshold) {
+            return ceil (q*threshold*threshold);
+        }
+        public int maxPopcount (int q, double threshold) {
+            return threshold > 0. ? floor (q/(threshold*threshold))
+                : Integer.MAX_VALUE;
+        }
+        public String toString () { return "Cosine"; }
+    };
+
+    /*
+     * a/(a + alpha(q-a) + beta(t-a)); alpha = beta = 1 is Tanimoto,
+     * 1/2 is Dice. a small beta scores a target by how much of the
+     * query it covers, which ranks substructure-like hits first.
+     */
+    static SimilarityMetric tversky (final double alpha, final double beta) {
+        if (alpha < 0. || beta < 0.)
+            throw new IllegalArgumentException
+                ("Tversky weights can't be negative: "+alpha+", "+beta);
+        return new SimilarityMetric () {
+            public double similarity (int a, int q, int t) {
+                return ratio (a, a + alpha*(q - a) + beta*(t - a), q, t);
+            }
+            /*
+             * for t <= q: t/(t + alpha(q-t)) >= T; without alpha any
+             * target with a bit in common will do
+             */
+            public int minPopcount (int q, double threshold) {
+                double d = 1. - threshold + threshold*alpha;
+                int min = d > 0. ? ceil (threshold*alpha*q/d) : 0;
+                return q > 0 && threshold > 0. ? Math.max(1, min) : min;
+            }
+            /*
+             * for t >= q: q/(q + beta(t-q)) >= T
+             */
+            public int maxPopcount (int q, double threshold) {
+                return threshold > 0. && beta > 0.
+                    ? floor (q + q*(1. - threshold)/(threshold*beta))
+                    : Integer.MAX_VALUE;
+            }
+            public String toString () {
+                return "Tversky("+alpha+","+beta+")";
+            }
+        };
+    }
+}
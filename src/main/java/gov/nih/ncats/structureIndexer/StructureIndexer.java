@@ -4,44 +4,62 @@ import static org.apache.lucene.document.Field.Store.NO;
 import static org.apache.lucene.document.Field.Store.YES;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.analysis.miscellaneous.PerFieldAnalyzerWrapper;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.BinaryDocValuesField;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
 import org.apache.lucene.document.DoubleField;
 import org.apache.lucene.document.IntField;
 import org.apache.lucene.document.LongField;
@@ -58,13 +76,21 @@ import org.apache.lucene.facet.taxonomy.FastTaxonomyFacetCounts;
 import org.apache.lucene.facet.taxonomy.TaxonomyReader;
 import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyReader;
 import org.apache.lucene.facet.taxonomy.directory.DirectoryTaxonomyWriter;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexReaderContext;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LeafReader;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SegmentInfos;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
@@ -72,17 +98,24 @@ import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanClause.Occur;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.ConstantScoreQuery;
 import org.apache.lucene.search.DisjunctionMaxQuery;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.SimpleCollector;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.ChecksumIndexInput;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.NIOFSDirectory;
-import org.apache.lucene.store.NoLockFactory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ThreadInterruptedException;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.NumericUtils;
 import org.apache.lucene.util.Version;
 
 import gov.nih.ncats.common.io.IOUtil;
@@ -95,6 +128,8 @@ import gov.nih.ncats.molwitch.fingerprint.Fingerprinter;
 import gov.nih.ncats.molwitch.fingerprint.Fingerprinters;
 import gov.nih.ncats.molwitch.fingerprint.Fingerprinters.FingerprintSpecification;
 import gov.nih.ncats.molwitch.io.ChemFormat;
+import gov.nih.ncats.molwitch.search.MolSearcher;
+import gov.nih.ncats.molwitch.search.MolSearcherFactory;
 
 
 
@@ -116,15 +151,26 @@ public class StructureIndexer {
     public static final String FIELD_FINGERPRINT_SIM = "_fingerprint_sim";
     public static final String FIELD_FIELDS = "_fields";
     public static final String FIELD_FORMULA = "_formula";
+    // heavy atom counts (docvalues only; see ElementCounts)
+    public static final String FIELD_ELEMENTS = "_elements";
     // fingerprint pop count    
     public static final String FIELD_POPCNT = "_popcount";
+    // popcount of each 64-bit block of the similarity fingerprint, one
+    // byte per block (docvalues only; see BlockBound)
+    public static final String FIELD_POPCNT_BLOCKS = "_popcount_blocks";
     public static final String FIELD_MOLFILE = "_molfile";
     public static final String FIELD_MOLWT = "_molwt";
     public static final String FIELD_NATOMS = "_natoms";
     public static final String FIELD_NBONDS = "_nbonds";
 
     static final String FIELD_DICT = "_dict";
-    static final String FIELD_CODE = "_code";
+    static final String FIELD_DATA = "_data";
+    static final byte CODEBOOK_FORMAT = 1;
+
+    // binary snapshot of all codebooks kept alongside the meta index
+    static final String CODEBOOK_SNAPSHOT = "codebooks.snapshot";
+    static final String CODEBOOK_SNAPSHOT_CODEC = "StructureIndexerCodebooks";
+    static final int CODEBOOK_SNAPSHOT_VERSION = 0;
     
     static final int FPSIZE = 16;
     static final int FPBITS = 2;
@@ -135,6 +181,9 @@ public class StructureIndexer {
 
     static final int MAX_ATOMS_V2000 = 999;
 
+    // compiled substructure queries kept for reuse
+    static final int DEFAULT_QUERY_CACHE_SIZE = 64;
+
     static final char[] ALPHA = {
         'Q','X','Y','Z','U','V','W'
     };
@@ -149,12 +198,19 @@ public class StructureIndexer {
                               (new char[]{ALPHA[i],ALPHA[j],ALPHA[k]}));
         CODEWORDS = codes.toArray(new String[codes.size()]);
     }
+    static final Map<String, Integer> CODEWORD_INDEX =
+        new HashMap<String, Integer>();
+    static {
+        for (int i = 0; i < (1<<CODESIZE); ++i)
+            CODEWORD_INDEX.put(CODEWORDS[i], i);
+    }
     
     static public class Codebook {
         final String name;
         int[] dict;
         int[][] eqv;
-        int[] counts;
+        // true if the codebook hasn't been persisted since it last changed
+        volatile boolean dirty;
         
         public Codebook (int fpsize) {
             byte[] buf = new byte[4];
@@ -179,70 +235,104 @@ public class StructureIndexer {
             setDictionary (dict);
         }
 
-        public int size () { return counts.length; }
+        Codebook (String name, int[] dict, int[][] eqv) {
+            this.name = name;
+            this.dict = dict;
+            this.eqv = eqv;
+        }
+
+        /*
+         * eqv[j] lists every code that has (at least) all the bits of j
+         * set; it only depends on the dictionary size so it's shared by
+         * all codebooks
+         */
+        static final ConcurrentMap<Integer, int[][]> EQV =
+            new ConcurrentHashMap<Integer, int[][]>();
+        static int[][] equivalences (int size) {
+            int[][] eqv = EQV.get(size);
+            if (eqv == null) {
+                int n = 1<<size;
+                eqv = new int[n][];
+                eqv[0] = new int[0];
+                for (int j = 1; j < n; ++j) {
+                    int[] codes = new int[1<<(size-Integer.bitCount(j))];
+                    // enumerate the supersets of j in increasing order
+                    for (int i = j, k = 0; i < n; i = (i+1) | j)
+                        codes[k++] = i;
+                    eqv[j] = codes;
+                }
+                int[][] prev = EQV.putIfAbsent(size, eqv);
+                if (prev != null)
+                    eqv = prev;
+            }
+            return eqv;
+        }
+
+        public int size () { return eqv.length; }
         
+        /*
+         * the codebook is persisted as a single compact record:
+         *   format (1 byte) | dictionary size (1 byte) | bits (2 bytes each)
+         */
         static Document instrument (Codebook cb) {
             Document doc = new Document ();
             doc.add(new StringField (FIELD_ID, cb.getName(), YES));
-            for (int i = 0; i < cb.dict.length; ++i) {
-                doc.add(new IntField (FIELD_DICT, cb.dict[i], YES));
-            }
-            
-            for (int i = 1; i < cb.counts.length; ++i) {
-                doc.add(new IntField (FIELD_CODE+"_"+i, cb.counts[i], YES));
-            }
+            ByteBuffer buf = ByteBuffer.allocate(2+2*cb.dict.length);
+            buf.put(CODEBOOK_FORMAT);
+            buf.put((byte)cb.dict.length);
+            for (int i = 0; i < cb.dict.length; ++i)
+                buf.putShort((short)cb.dict[i]);
+            doc.add(new StoredField (FIELD_DATA, buf.array()));
             //logger.info("++ "+load (doc));
             return doc;
         }
 
         static Codebook load (Document doc) {
             String name = doc.get(FIELD_ID);
+            BytesRef data = doc.getBinaryValue(FIELD_DATA);
+            if (data != null) {
+                ByteBuffer buf = ByteBuffer.wrap
+                    (data.bytes, data.offset, data.length);
+                byte format = buf.get();
+                if (format != CODEBOOK_FORMAT)
+                    throw new IllegalArgumentException
+                        (name+": unknown codebook format "+format);
+                int[] dict = new int[buf.get() & 0xff];
+                for (int i = 0; i < dict.length; ++i)
+                    dict[i] = buf.getShort() & 0xffff;
+                Codebook cb = new Codebook (name, dict);
+                cb.dirty = false;
+                return cb;
+            }
+
+            // older indexes store the dictionary as individual int
+            // fields (along with the codebook counts which are now
+            // derived from the index); leave the codebook dirty so it's
+            // rewritten in the compact format
             IndexableField[] fields = doc.getFields(FIELD_DICT);
             int[] dict = new int[fields.length];
             for (int i = 0; i < dict.length; ++i)
                 dict[i] = fields[i].numericValue().intValue();
-
-            Codebook cb = new Codebook (name, dict);
-            for (int i = 1; i < cb.counts.length; ++i) {
-                IndexableField f = doc.getField(FIELD_CODE+"_"+i);
-                if (f != null) {
-                    cb.counts[i] = f.numericValue().intValue();
-                }
-                else {
-                    logger.warning
-                        (name+": field "+FIELD_CODE+"_"+i+" is null!");
-                }
-            }
-            return cb;
+            return new Codebook (name, dict);
         }
 
         public String getName () { return name; }
         public int[] getDictionary () { return dict; }
-        public void setDictionary (int[] dict) {
+        public synchronized void setDictionary (int[] dict) {
             if (dict == null || dict.length == 0)
                 throw new IllegalArgumentException ("Invalid dictionary!");
 
-            counts = new int[1<<dict.length];
-            BitSet[] bsets = new BitSet[counts.length];
-            for (int i = 0; i < bsets.length; ++i)
-                bsets[i] = new BitSet ();
-
-            for (int i = 1; i < bsets.length; ++i) {
-                for (int j = 1; j <  bsets.length; ++j) 
-                    if ((i & j) == j) 
-                        bsets[j].set(i);
-            }
-            
-            eqv = new int[bsets.length][];
-            for (int i = 0; i < eqv.length; ++i) {
-                BitSet bs = bsets[i];
-                eqv[i] = new int[bs.cardinality()];
-                for (int k = 0, j = bs.nextSetBit(0);
-                     j>=0; j = bs.nextSetBit(j+1))
-                    eqv[i][k++] = j;
-            }
-            
+            eqv = equivalences (dict.length);
             this.dict = dict;
+            dirty = true;
+        }
+
+        /*
+         * the given dictionary has been persisted
+         */
+        synchronized void clean (int[] saved) {
+            if (dict == saved)
+                dirty = false;
         }
 
        
@@ -255,25 +345,13 @@ public class StructureIndexer {
             return code == 0 ? null : eqv[code];
         }
 
-        public int count (int code) {
-            return counts[code];
-        }
-        
-        public synchronized int incr (int code) {
-            return ++counts[code];
-        }
-
-        public synchronized int decr (int code) {
-            return --counts[code];
-        }
-
         public String encode (int code) {
             return name+CODEWORDS[code];
         }
 
         public int decode (String code) {
             if (code.startsWith(name)) {
-                String id = code.substring(0, name.length());
+                String id = code.substring(name.length());
                 for (int i = 0; i < CODEWORDS.length; ++i)
                     if (id.equals(CODEWORDS[i]))
                         return i;
@@ -281,17 +359,6 @@ public class StructureIndexer {
             return -1;
         }
 
-        protected synchronized void adjustCounts (IndexSearcher searcher)
-            throws IOException {
-            int total = searcher.getIndexReader().numDocs();
-            for (int i = 1; i < counts.length; ++i) {
-                TermQuery tq = new TermQuery
-                    (new Term (FIELD_CODEBOOK, encode (i)));
-                TopDocs hits = searcher.search(tq, total);
-                counts[i] = hits.totalHits;
-            }
-        }
-
         public int encode (Fingerprint fp) {
             int code = 0;
             BitSet bs = fp.toBitSet();
@@ -329,18 +396,41 @@ public class StructureIndexer {
                 sb.append(dict[i]);
                 if (i+1 < dict.length) sb.append(" ");
             }
-            sb.append(",counts=");
-            for (int i = 0; i < counts.length; ++i) {
-                if (counts[i] > 0) {
-                    sb.append(i+":"+counts[i]);
-                    if (i+1 < counts.length) sb.append(" ");
-                }
-            }
             sb.append("}");
             return sb.toString();
         }
     }
 
+    /**
+     * Number of documents for each code of each codebook as seen by a
+     * particular reader. The counts are the docFreq of the corresponding
+     * {@link #FIELD_CODEBOOK} terms summed over all segments, so they
+     * also include deleted documents that haven't been merged away yet;
+     * that's fine since they're only used to pick the most selective
+     * codebook.
+     */
+    static public class CodebookStats {
+        final Object key;
+        final int[][] counts;
+
+        CodebookStats (Object key, int[][] counts) {
+            this.key = key;
+            this.counts = counts;
+        }
+
+        public int count (int codebook, int code) {
+            return counts[codebook][code];
+        }
+
+        public int count (int codebook, int[] codes) {
+            int[] c = counts[codebook];
+            int total = 0;
+            for (int i = 0; i < codes.length; ++i)
+                total += c[codes[i]];
+            return total;
+        }
+    }
+
     static boolean get (int[] fp, int bit) {
         return (fp[bit/32] & ((1 << (31-(bit % 32))))) != 0;
     }
@@ -356,103 +446,332 @@ public class StructureIndexer {
         return sb.toString();
     }
     
+    /**
+     * A structure to be indexed along with its source and id. Once
+     * instrumented, the record also carries its Lucene document.
+     */
+    static public class IndexRecord {
+        final String source;
+        final String id;
+        final Chemical chem;
+        Document doc;
+
+        public IndexRecord (String id, Chemical chem) {
+            this (null, id, chem);
+        }
+
+        public IndexRecord (String source, String id, Chemical chem) {
+            if (id == null)
+                throw new IllegalArgumentException ("Id is null");
+            if (chem == null)
+                throw new IllegalArgumentException ("Structure is null");
+            this.source = source;
+            this.id = id;
+            this.chem = chem;
+        }
+
+        public String getSource () { return source; }
+        public String getId () { return id; }
+        public Chemical getChemical () { return chem; }
+    }
+    
+    /*
+     * loads only the requested stored fields of a document. if none of
+     * the fields is multi-valued the visitor stops as soon as all of
+     * them have been read, so the remaining fields (e.g., the molfile
+     * which is stored last) are never decoded.
+     */
+    static class FieldSelector extends DocumentStoredFieldVisitor {
+        final Set<String> fields;
+        final boolean single;
+        final Set<String> seen = new HashSet<String>();
+
+        FieldSelector (boolean single, String... fields) {
+            this (single, new HashSet<String>(Arrays.asList(fields)));
+        }
+
+        FieldSelector (boolean single, Set<String> fields) {
+            super (fields);
+            this.fields = fields;
+            this.single = single;
+        }
+
+        @Override
+        public Status needsField (FieldInfo info) throws IOException {
+            if (single && seen.size() == fields.size())
+                return Status.STOP;
+            if (fields.contains(info.name))
+                return seen.add(info.name) || !single
+                    ? Status.YES : Status.NO;
+            return Status.NO;
+        }
+    }
+    
     static class Payload {
         final int id;   
-        final Document doc;
+        final IndexSearcher searcher;
+        Document doc; // full document
+        final Map<String, String> values = new HashMap<String, String>();
+        Chemical structure;
         Chemical mol;
+        byte[] sub; // raw fingerprints as read from docvalues
+        byte[] sim;
+        byte[] elements; // encoded element counts
         Fingerprint fpSub;
         Fingerprint fpSim;
 
         Payload (int id, Document doc) {
             this.id = id;
             this.doc = doc;
+            this.searcher = null;
+        }
+
+        /*
+         * nothing is read from the stored fields until it's first
+         * needed, i.e., once a candidate has survived the fingerprint
+         * screen, and then only the fields that are asked for
+         */
+        Payload (IndexSearcher searcher, int id, byte[] sub, byte[] sim) {
+            this.id = id;
+            this.searcher = searcher;
+            this.sub = sub;
+            this.sim = sim;
         }
         
         Payload () {
             id = -1;
             doc = null;
+            searcher = null;
         }
 
-        public Fingerprint getFpSub () {
-        	
-            if (fpSub == null) {
-                BytesRef ref = doc.getBinaryValue(FIELD_FINGERPRINT_SUB);
-                byte[] bytes;
-                if (ref.offset > 0) {
-                	bytes = new byte[ref.length];
-                    System.arraycopy(ref.bytes, ref.offset, fpSub, 0, ref.length);
+        static byte[] getBytes (Document doc, String field) {
+            BytesRef ref = doc.getBinaryValue(field);
+            return ref != null ? Arrays.copyOfRange
+                (ref.bytes, ref.offset, ref.offset+ref.length) : new byte[0];
+        }
+
+        Document load (FieldSelector selector) {
+            if (doc != null || searcher == null)
+                return doc;
+            try {
+                searcher.doc(id, selector);
+                return selector.getDocument();
+            }
+            catch (IOException ex) {
+                throw new RuntimeException
+                    ("Can't load document "+id, ex);
+            }
+        }
+
+        /*
+         * fingerprints are docvalues; only documents indexed before that
+         * (whose docvalues are missing or empty) have them stored
+         */
+        byte[] fingerprint (String field) {
+            byte[] fp = null;
+            if (searcher != null) {
+                List<LeafReaderContext> leaves =
+                    searcher.getIndexReader().leaves();
+                LeafReaderContext ctx =
+                    leaves.get(ReaderUtil.subIndex(id, leaves));
+                try {
+                    fp = FingerprintValues.copy
+                        (ctx.reader().getBinaryDocValues(field),
+                         id - ctx.docBase);
                 }
-                else {
-                	bytes = ref.bytes;
+                catch (IOException ex) {
+                    throw new RuntimeException
+                        ("Can't load "+field+" of document "+id, ex);
                 }
-                
-                fpSub = new Fingerprint(bytes);
             }
+            if (fp == null || fp.length == 0)
+                fp = getBytes (load (new FieldSelector (true, field)), field);
+            return fp;
+        }
+
+        public synchronized byte[] getFpSubBytes () {
+            if (sub == null || sub.length == 0)
+                sub = fingerprint (FIELD_FINGERPRINT_SUB);
+            return sub;
+        }
+        
+        public synchronized byte[] getFpSimBytes () {
+            if (sim == null || sim.length == 0)
+                sim = fingerprint (FIELD_FINGERPRINT_SIM);
+            return sim;
+        }
+
+        /*
+         * encoded heavy atom counts; documents indexed before the counts
+         * were kept fall back to the stored formula. null if unknown.
+         */
+        public synchronized byte[] getElementBytes () {
+            if (elements == null || elements.length == 0) {
+                String formula = get (FIELD_FORMULA);
+                elements = formula != null ? ElementCounts.encode
+                    (ElementCounts.pairs(formula)) : null;
+            }
+            return elements;
+        }
+
+        public Fingerprint getFpSub () {
+            if (fpSub == null)
+                fpSub = new Fingerprint (getFpSubBytes ());
             return fpSub;
         }
+        
         public Fingerprint getFpSim () {
-        	
-            if (fpSim == null) {
-                BytesRef ref = doc.getBinaryValue(FIELD_FINGERPRINT_SIM);
-                byte[] bytes;
-                if (ref.offset > 0) {
-                	bytes = new byte[ref.length];
-                    System.arraycopy(ref.bytes, ref.offset, fpSim, 0, ref.length);
+            if (fpSim == null)
+                fpSim = new Fingerprint (getFpSimBytes ());
+            return fpSim;
+        }
+        
+        public int getId () { return id; }
+
+        /*
+         * first value of a single stored field
+         */
+        public synchronized String get (String field) {
+            if (doc != null || searcher == null)
+                return doc != null ? doc.get(field) : null;
+            if (!values.containsKey(field))
+                values.put(field, load (new FieldSelector (true, field))
+                           .get(field));
+            return values.get(field);
+        }
+
+        /*
+         * all values of a multi-valued stored field
+         */
+        public synchronized String[] getValues (String field) {
+            return (doc != null ? doc
+                    : load (new FieldSelector (false, field))).getValues(field);
+        }
+        
+        public synchronized Document getDoc () {
+            if (doc == null && searcher != null) {
+                try {
+                    doc = searcher.doc(id);
                 }
-                else {
-                	bytes = ref.bytes;
+                catch (IOException ex) {
+                    throw new RuntimeException
+                        ("Can't load document "+id, ex);
                 }
-                
-                fpSim = new Fingerprint(bytes);
             }
-            return fpSim;
+            return doc;
         }
-        public int getId () { return id; }
-        public Document getDoc () { return doc; }
-        public Chemical getMol () {
-            if (mol == null) {
-                String mol = doc.get(FIELD_MOLFILE);
+
+        /*
+         * the bare structure as parsed from the molfile; this is all
+         * that's needed for matching
+         */
+        public synchronized Chemical getStructure () {
+            if (structure == null) {
+                String mol = get (FIELD_MOLFILE);
                 logger.finest(String.format("in getMol, beginning of mol %s", (mol != null && mol.length() > 100 ?mol.substring(0, 99) : "blank/short")));
 
                 try {
 
-                    this.mol = Chemical.parse(mol);
+                    structure = Chemical.parse(mol);
 //                    try{
 //                        this.mol.aromatize();
 //                    }catch(Exception e){
 //                        //ignore?
 //                    }
-                    this.mol.setName(doc.get(FIELD_ID));
-                    for (IndexableField f : doc.getFields(FIELD_FIELDS)) {
-                        String v = doc.get(f.stringValue());
-                        this.mol.setProperty(f.stringValue(), v);
-                    }
                 }
                 catch (Exception ex) {
                 	ex.printStackTrace();
-                    String id = doc.get(FIELD_ID) != null ? doc.get(FIELD_ID) : "(unknown)";
+                    String id = get (FIELD_ID) != null ? get (FIELD_ID) : "(unknown)";
                 	System.err.printf("bbadmol (id=%s=\n%s\n", id, mol);
                     /*throw new RuntimeException
                         ("Document "+doc.get(FIELD_ID)+" contains bogus "
                          +"field "+FIELD_MOLFILE+"!\n" , ex);*/
-                    return new Chemical();
+                    structure = new Chemical();
                 }
             }
+            return structure;
+        }
+
+        /*
+         * the structure along with its name and properties; the molfile
+         * has already been read for the structure, so only the name and
+         * the properties are loaded
+         */
+        public synchronized Chemical getMol () {
+            if (mol == null) {
+                Chemical chem = getStructure ();
+                Document doc = load
+                    (new FieldSelector (false, FIELD_ID, FIELD_FIELDS));
+                String[] fields = doc.getValues(FIELD_FIELDS);
+                Document props = fields.length > 0
+                    ? load (new FieldSelector (false, fields)) : doc;
+                chem.setName(doc.get(FIELD_ID));
+                for (String f : fields)
+                    chem.setProperty(f, props.get(f));
+                mol = chem;
+            }
             return mol;
         }
     }
     static final Payload POISON_PAYLOAD = new Payload ();
+    static final int PAYLOADS_PER_WORKER = 64;
+
+    /*
+     * per-segment access to the fingerprint docvalues so that candidates
+     * can be screened without touching the stored fields. segments
+     * written before the fingerprints were stored as docvalues fall back
+     * to the stored document. BinaryDocValues aren't thread-safe, so
+     * each producer thread needs its own instance.
+     */
+    static class FingerprintValues {
+        final IndexSearcher searcher;
+        final List<LeafReaderContext> leaves;
+        final BinaryDocValues[] sub;
+        final BinaryDocValues[] sim;
+
+        FingerprintValues (IndexSearcher searcher) throws IOException {
+            this.searcher = searcher;
+            leaves = searcher.getIndexReader().leaves();
+            sub = new BinaryDocValues[leaves.size()];
+            sim = new BinaryDocValues[leaves.size()];
+            for (int i = 0; i < sub.length; ++i) {
+                LeafReader reader = leaves.get(i).reader();
+                sub[i] = reader.getBinaryDocValues(FIELD_FINGERPRINT_SUB);
+                sim[i] = reader.getBinaryDocValues(FIELD_FINGERPRINT_SIM);
+            }
+        }
+
+        static byte[] copy (BinaryDocValues values, int doc) {
+            if (values == null)
+                return null;
+            BytesRef ref = values.get(doc);
+            return Arrays.copyOfRange
+                (ref.bytes, ref.offset, ref.offset+ref.length);
+        }
+
+        Payload payload (int doc) {
+            int leaf = ReaderUtil.subIndex(doc, leaves);
+            int local = doc - leaves.get(leaf).docBase;
+            return new Payload (searcher, doc, copy (sub[leaf], local),
+                                copy (sim[leaf], local));
+        }
+    }
 
     static public class Result implements Comparable<Result> {
         final int id;
-        final Document doc;
+        final Payload payload;
         final CachedSupplier<Chemical> mol;
         final int[] hit;
         final Double similarity;
         
+        /*
+         * the fields are read from the index as they're asked for; the
+         * enumeration holds on to the reader until it's done (see
+         * SearchTask.hold)
+         */
         Result (Payload payload, Double similarity, int[] hit) {
             id = payload.getId();
-            doc = payload.getDoc();
+            this.payload = payload;
 
 
             //the input hit is 0-based offset must make it 1-based position
@@ -496,7 +815,7 @@ public class StructureIndexer {
         
         Result () {
             id = Integer.MAX_VALUE;
-            doc = null;
+            payload = null;
             mol = null;
             hit= null;
             similarity = null;
@@ -510,10 +829,13 @@ public class StructureIndexer {
                 else if (dif < 0.) d = -1;
             }
             
-            if (d == 0 && doc != null && r.doc != null) {
+            // only look at documents that have already been loaded; the
+            // priority queue must not force a stored field read
+            if (d == 0 && payload != null && payload.doc != null
+                && r.payload != null && r.payload.doc != null) {
                 // tiebreaker
-                IndexableField f1 = doc.getField(FIELD_NATOMS);
-                IndexableField f2 = r.doc.getField(FIELD_NATOMS);
+                IndexableField f1 = payload.doc.getField(FIELD_NATOMS);
+                IndexableField f2 = r.payload.doc.getField(FIELD_NATOMS);
                 if (f1 != null && f2 != null) {
                     d = f1.numericValue().intValue()
                         - f2.numericValue().intValue();
@@ -527,27 +849,23 @@ public class StructureIndexer {
             return d;
         }
 
-        public String get (String field) { return doc.get(field);}
-        public String getId () { return doc.get(FIELD_ID); } 
-        public String getSource () { return doc.get(FIELD_SOURCE); }
+        public String get (String field) { return payload.get(field);}
+        public String getId () { return payload.get(FIELD_ID); } 
+        public String getSource () { return payload.get(FIELD_SOURCE); }
         public Double getSimilarity () { return similarity; }
         public Chemical getMol () { return mol.get(); }
-        public Document getDoc () { return doc; }
+        public Document getDoc () { return payload.getDoc(); }
         public String[] getFields () {
-            List<String> fields = new ArrayList<String>();
-            for (IndexableField f : doc.getFields(FIELD_FIELDS)) {
-                fields.add(f.stringValue());
-            }
-            return fields.toArray(new String[0]);
+            return payload.getValues(FIELD_FIELDS);
         }
         public Number getFieldAsNumber (String field) {
-            IndexableField f = doc.getField(field);
+            IndexableField f = getDoc().getField(field);
             if (f == null)
                 throw new IllegalArgumentException ("Unknown field: "+field);
             return f.numericValue();
         }
         public String getFieldAsString (String field) {
-            IndexableField f = doc.getField(field);
+            IndexableField f = getDoc().getField(field);
             if (f == null)
                 throw new IllegalArgumentException ("Unknown field: "+field);
             return f.stringValue();
@@ -555,15 +873,227 @@ public class StructureIndexer {
     }
     static final Result POISON_RESULT = new Result ();
 
-    public static class ResultEnumeration implements Enumeration<Result> {
+    /*
+     * non-scoring collector that hands every hit straight to the
+     * verification workers along with its fingerprints, so nothing
+     * proportional to the size of the index is ever allocated
+     */
+    static class PayloadCollector extends SimpleCollector {
+        final IndexSearcher searcher;
+        final BlockingQueue<Payload> in;
+        final List<Future<Integer>> workers;
+        final SearchTask task;
+        final BlockBound bound; // null for none
+        int docBase;
+        BinaryDocValues sub;
+        BinaryDocValues sim;
+        BinaryDocValues blocks;
+        int count;
+        int pruned; // by the block bound
+        boolean terminated;
+
+        PayloadCollector (IndexSearcher searcher,
+                          BlockingQueue<Payload> in,
+                          List<Future<Integer>> workers,
+                          SearchTask task) {
+            this (searcher, in, workers, task, null);
+        }
+
+        PayloadCollector (IndexSearcher searcher,
+                          BlockingQueue<Payload> in,
+                          List<Future<Integer>> workers,
+                          SearchTask task, BlockBound bound) {
+            this.searcher = searcher;
+            this.in = in;
+            this.workers = workers;
+            this.task = task;
+            this.bound = bound;
+        }
+
+        @Override
+        protected void doSetNextReader (LeafReaderContext context)
+            throws IOException {
+            if (terminated || task.isCancelled()) {
+                terminated = true;
+                throw new CollectionTerminatedException ();
+            }
+            
+            LeafReader reader = context.reader();
+            docBase = context.docBase;
+            sub = reader.getBinaryDocValues(FIELD_FINGERPRINT_SUB);
+            sim = reader.getBinaryDocValues(FIELD_FINGERPRINT_SIM);
+            blocks = bound != null
+                ? reader.getBinaryDocValues(FIELD_POPCNT_BLOCKS) : null;
+        }
+
+        @Override
+        public void collect (int doc) throws IOException {
+            if (task.isCancelled()) {
+                terminated = true;
+                throw new CollectionTerminatedException ();
+            }
+            if (blocks != null && bound.prune(blocks.get(doc))) {
+                ++pruned;
+                return;
+            }
+            Payload p = new Payload (searcher, docBase+doc,
+                                     FingerprintValues.copy(sub, doc),
+                                     FingerprintValues.copy(sim, doc));
+            // the queue is bounded, so this blocks until the workers
+            // catch up; if they've all stopped (e.g., max results
+            // reached) there's no point screening any further
+            if (!put (in, p, workers)) {
+                terminated = true;
+                throw new CollectionTerminatedException ();
+            }
+            ++count;
+        }
+
+        static boolean put (BlockingQueue<Payload> in, Payload p,
+                            List<Future<Integer>> workers) {
+            try {
+                while (!in.offer(p, 100, TimeUnit.MILLISECONDS)) {
+                    if (isDone (workers))
+                        return false;
+                }
+                return true;
+            }
+            catch (InterruptedException ex) {
+                throw new ThreadInterruptedException (ex);
+            }
+        }
+
+        static boolean isDone (List<Future<Integer>> workers) {
+            for (Future<Integer> f : workers)
+                if (!f.isDone())
+                    return false;
+            return true;
+        }
+
+        @Override
+        public boolean needsScores () { return false; }
+        
+        public int getCount () { return count; }
+    }
+
+    /*
+     * state shared by the screen, the workers and the enumeration of a
+     * search so that everything stops once max results have been found
+     * or the enumeration is closed. the threads are signalled through
+     * the flag rather than interrupted; interrupting a thread that's
+     * reading from an NIOFSDirectory closes the underlying channel.
+     */
+    static class SearchTask {
+        final int max;
+        final long deadline; // System.nanoTime(); 0 for none
+        final AtomicInteger hits = new AtomicInteger ();
+        final AtomicInteger timedOut = new AtomicInteger ();
+        volatile boolean cancelled;
+        volatile boolean expired;
+        // the search and the enumeration each hold the reader until
+        // they're done with it
+        final AtomicInteger holders = new AtomicInteger ();
+        IndexReader reader;
+
+        SearchTask (int max) {
+            this (max, 0l);
+        }
+
+        SearchTask (int max, long deadline) {
+            this.max = max;
+            this.deadline = deadline;
+        }
+
+        /*
+         * claim a slot for a new result; false if the search has been
+         * cancelled or max results have already been claimed
+         */
+        boolean claim () {
+            if (isCancelled ())
+                return false;
+            int n = hits.incrementAndGet();
+            if (max > 0 && n >= max)
+                cancelled = true;
+            return max <= 0 || n <= max;
+        }
+        
+        /*
+         * keep the reader open, even if it's been released (see
+         * releaseReaders), until both the search and the enumeration of
+         * its results have called release()
+         */
+        void hold (IndexReader reader) {
+            reader.incRef();
+            this.reader = reader;
+            holders.set(2);
+        }
+
+        void release () {
+            if (holders.decrementAndGet() == 0) {
+                try {
+                    reader.decRef();
+                }
+                catch (IOException ex) {
+                    logger.warning("Can't release reader "+reader);
+                }
+            }
+        }
+        
+        void cancel () { cancelled = true; }
+        boolean isCancelled () {
+            if (!cancelled && deadline != 0
+                && System.nanoTime() - deadline > 0) {
+                expired = true;
+                cancelled = true;
+            }
+            return cancelled;
+        }
+    }
+    
+    public static class ResultEnumeration
+        implements Enumeration<Result>, Closeable {
         final BlockingQueue<Result> queue;
+        final SearchTask task;
+        final AtomicBoolean done = new AtomicBoolean ();
         Result next;
         
-        ResultEnumeration (BlockingQueue<Result> queue) {
+        ResultEnumeration (BlockingQueue<Result> queue, SearchTask task) {
             this.queue = queue;
+            this.task = task;
 //            next ();
         }
 
+        /**
+         * Stop the search; results that have already been queued are
+         * discarded. The fields of the results are read from the index
+         * as they're asked for, so the index reader is kept open until
+         * the enumeration is closed or exhausted; results should be read
+         * before that.
+         */
+        public void close () {
+            task.cancel();
+            next = POISON_RESULT;
+            queue.clear();
+            release ();
+        }
+
+        void release () {
+            if (done.compareAndSet(false, true))
+                task.release();
+        }
+
+        /**
+         * Whether the query deadline was reached, in which case the
+         * results are partial.
+         */
+        public boolean isExpired () { return task.expired; }
+        
+        /**
+         * Number of candidates that were abandoned because their
+         * matching ran out of budget.
+         */
+        public int getTimedOutCount () { return task.timedOut.get(); }
+
         void next () {
             try {
                 next = queue.take();
@@ -576,6 +1106,10 @@ public class StructureIndexer {
 
         public boolean hasMoreElements () {
         	 if (next == null) next ();
+            // nextElement() reads ahead, so the last result is only done
+            // with once the caller has asked for more
+            if (next == POISON_RESULT)
+                release ();
             return next != POISON_RESULT;
         }
         
@@ -596,23 +1130,87 @@ public class StructureIndexer {
         return c;
     }
 
+    /*
+     * popcount of each 64-bit block; the fingerprint bytes may be
+     * trimmed, in which case so are the blocks
+     */
+    static byte[] blockPopcnt (byte[] fp) {
+        byte[] blocks = new byte[(fp.length+7)/8];
+        for (int i = 0; i < fp.length; ++i)
+            blocks[i/8] += Integer.bitCount(fp[i] & 0xff);
+        return blocks;
+    }
+
+    /*
+     * joint bound over the block popcounts of the similarity
+     * fingerprints: no block can have more bits in common than the
+     * smaller of its two popcounts, so a <= sum min(q_i,t_i) and, the
+     * metrics all growing with a, similarity(sum min(q_i,t_i), q, t)
+     * bounds what the target can score. unlike the total popcount this
+     * sees the bits that sit in different blocks, and it only takes the
+     * eight bytes of FIELD_POPCNT_BLOCKS to rule a candidate out.
+     */
+    static class BlockBound {
+        final byte[] query;
+        final int popcnt;
+        final SimilarityMetric metric;
+        final double threshold;
+
+        BlockBound (byte[] fp, SimilarityMetric metric, double threshold) {
+            this.query = blockPopcnt (fp);
+            this.popcnt = popcnt (fp);
+            this.metric = metric;
+            this.threshold = threshold;
+        }
+
+        double bound (BytesRef blocks) {
+            int a = 0, t = 0;
+            for (int i = 0; i < blocks.length; ++i) {
+                int b = blocks.bytes[blocks.offset+i];
+                if (i < query.length)
+                    a += Math.min(query[i], b);
+                t += b;
+            }
+            return metric.similarity(a, popcnt, t);
+        }
+
+        /*
+         * documents indexed before the block popcounts were kept have
+         * none and are never pruned
+         */
+        boolean prune (BytesRef blocks) {
+            return blocks.length > 0 && bound (blocks) < threshold;
+        }
+    }
+
+    /*
+     * results ordered by similarity. the first take() waits until the
+     * buffer is full, the search is over or the first result has been
+     * held for the grace period, whichever comes first; after that the
+     * results are handed out as soon as they arrive (best first among
+     * those that have). fast searches thus still come back ranked, while
+     * slow ones start streaming hits right away.
+     */
     static class ResultBlockingQueue<T>
         extends PriorityBlockingQueue<T> {
+        static final long DEFAULT_GRACE = 50l; // millis
 
         final ReentrantLock lock = new ReentrantLock ();
         final Condition filled = lock.newCondition();
 
         private final int bufsiz;
+        private final long grace;
         private boolean ready = false;
+        private long first; // arrival of the first result
 
         public ResultBlockingQueue () {
-            this (10000);
+            this (10000, DEFAULT_GRACE);
         }
 
-        public ResultBlockingQueue (int bufsiz) {
+        public ResultBlockingQueue (int bufsiz, long grace) {
             super (bufsiz);
             this.bufsiz = bufsiz;
-            //System.err.println("#### "+getClass()+": bufsiz="+bufsiz);
+            this.grace = grace;
         }
 
         @Override
@@ -621,14 +1219,12 @@ public class StructureIndexer {
 
             lock.lock();
             try {
-                if (!ready && (size() >= bufsiz || r == POISON_RESULT)) {
-                    /*
-                    System.err.println("************ QUEUE IS NOW READY "
-                                       +"FOR CONSUMPTION ("+size()
-                                       +")! ************");
-                    */
-                    ready = true;
-                    filled.signal();
+                if (!ready) {
+                    if (size() >= bufsiz || r == POISON_RESULT)
+                        ready = true;
+                    if (first == 0l)
+                        first = System.currentTimeMillis();
+                    filled.signalAll();
                 }
             }
             finally {
@@ -640,13 +1236,19 @@ public class StructureIndexer {
         public T take () throws InterruptedException {
             lock.lock();
             try {
-                /*
-                 * here we wait enough there are sufficient elements
-                 * in the priority queue to have a meaningful ordering
-                 * before the first take().
-                 */
-                while (!ready)
-                    filled.await();
+                while (!ready) {
+                    if (first == 0l) {
+                        filled.await();
+                    }
+                    else {
+                        long wait = first + grace
+                            - System.currentTimeMillis();
+                        if (wait <= 0l)
+                            ready = true;
+                        else
+                            filled.await(wait, TimeUnit.MILLISECONDS);
+                    }
+                }
             }
             finally {
                 lock.unlock();
@@ -656,140 +1258,624 @@ public class StructureIndexer {
         }
     }
 
-    static class Tanimoto implements Callable<Integer> {
+    static class Similarity implements Callable<Integer> {
         final BlockingQueue<Payload> in;
         final BlockingQueue<Result> out;
-        final int max;
+        final SearchTask task;
         final double threshold;
-        final Fingerprint query;
+        final byte[] query;
+        final SimilarityMetric metric;
 
-        Tanimoto (BlockingQueue<Payload> in,
-                  BlockingQueue<Result> out,
-                  Fingerprint query, int max,
-                  double threshold) {
+        Similarity (BlockingQueue<Payload> in,
+                    BlockingQueue<Result> out,
+                    byte[] query, SimilarityMetric metric,
+                    SearchTask task, double threshold) {
             this.in = in;
             this.out = out;
-            this.max = max;
+            this.task = task;
             this.threshold = threshold;
             this.query = query;
+            this.metric = metric;
         }
 
         public Integer call () throws Exception {
             int count = 0;
             for (Payload p; (p = in.take()) != POISON_PAYLOAD
-                     && (max <= 0 || (max > 0 && out.size() < max));) {
-            
-            	Fingerprint fp = p.getFpSim();
-            	double similarity = fp.tanimotoSimilarity(query);
-            	 if (similarity >= threshold) {
-                     ++count;
-                     out.put(new Result (p, similarity,null));
-                 }
-            	
+                     && !task.isCancelled();) {
+                double similarity = metric.similarity
+                    (query, p.getFpSimBytes());
+                if (similarity >= threshold && task.claim()) {
+                    ++count;
+                    out.put(new Result (p, similarity,null));
+                }
             }
             return count;
         }
     }
     
-    static class GraphIso implements Callable<Integer> {
-        final BlockingQueue<Payload> in;
+    /**
+     * A substructure query prepared once for searching: the processed
+     * query molecule, the fingerprints and the codebook codes of the
+     * screen and, once candidates are first verified by the VF2 matcher,
+     * its compiled graph and matching order. Apart from the pool of
+     * searchers, which are handed to one verification task at a time
+     * since the backends aren't known to be thread-safe, and the plan,
+     * which is only made once, it's immutable and so can be shared by
+     * all verification tasks and reused across searches.
+     */
+    static public class CompiledQuery {
+        final Chemical query;
+        final boolean backend; // false if there's no MolSearcher for it
+        volatile MolGraph graph;
+        volatile int[] order;
+        final byte[] fp;
+        final byte[] fpSim;
+        final int[][] codes; // per codebook; null if it doesn't apply
+        final int[] elements; // heavy atom counts (ElementCounts pairs)
+        // idle searchers; there's one for each task verifying at the
+        // same time, and those beyond the capacity are dropped
+        final BlockingQueue<IsoMorphismSearcher> searchers =
+            new ArrayBlockingQueue<IsoMorphismSearcher>
+            (Runtime.getRuntime().availableProcessors());
+
+        CompiledQuery (Chemical query, MolSearcher searcher, Fingerprint fp,
+                       Fingerprint fpSim, int[][] codes) {
+            this.query = query;
+            this.backend = searcher != null;
+            this.fp = fp.toByteArray();
+            this.fpSim = fpSim.toByteArray();
+            this.codes = codes;
+            this.elements = ElementCounts.pairs(query);
+            searchers.offer(new IsoMorphismSearcher
+                            (query, null, null, searcher));
+        }
+
+        /*
+         * the VF2 graph and matching order, planned from the element
+         * frequencies of the index the first time they're needed
+         */
+        synchronized void plan (double[] frequencies) {
+            if (graph == null) {
+                MolGraph g = MolGraph.compile(query);
+                order = MatchOrder.plan(g, frequencies);
+                graph = g;
+            }
+        }
+
+        IsoMorphismSearcher borrow (long stepLimit, long timeout,
+                                    boolean vf2) {
+            IsoMorphismSearcher searcher = searchers.poll();
+            if (searcher == null) {
+                MolSearcher ms;
+                // the backend reads the query molecule, which is shared
+                synchronized (query) {
+                    ms = MolSearcherFactory.create(query).orElse(null);
+                }
+                searcher = new IsoMorphismSearcher (query, null, null, ms);
+            }
+            if (graph != null)
+                searcher.setPlan(graph, order);
+            return searcher.setVF2(vf2).setTargetBudget(stepLimit, timeout);
+        }
+
+        void release (IsoMorphismSearcher searcher) {
+            searchers.offer(searcher);
+        }
+
+        public Chemical getQuery () { return query; }
+        /*
+         * null until the query has been verified by the VF2 matcher
+         */
+        public MolGraph getGraph () { return graph; }
+    }
+
+    /*
+     * state shared by all verification tasks of a substructure search;
+     * IsoMorphismSearcher isn't thread-safe, so each candidate is
+     * matched with one borrowed from the compiled query
+     */
+    static class SubstructureQuery {
+        final CompiledQuery query;
+        final long stepLimit;
+        final long timeout;
+        final boolean vf2;
         final BlockingQueue<Result> out;
-        final IsoMorphismSearcher isomorphismSearcher;
-        
-        final int max;
-        final BitSet fpBits;
+        final SearchTask task;
         final byte[] fp;
         final byte[] fpS;
+        final int[] elements;
 
-        GraphIso (BlockingQueue<Payload> in,
-                  BlockingQueue<Result> out,
-                  IsoMorphismSearcher isomorphismSearcher, Fingerprint fp, int max, Fingerprint fpSim) {
-            this.in = in;
-            this.out = out;
-            this.max = max;
-            this.fp = fp.toByteArray();
-            this.fpBits = fp.toBitSet();
-            this.fpS = fpSim.toByteArray();
-            this.isomorphismSearcher = isomorphismSearcher;
+        SubstructureQuery (final CompiledQuery query, final long stepLimit,
+                           final long timeout, BlockingQueue<Result> out,
+                           SearchTask task) {
+            this (query, stepLimit, timeout, false, out, task);
         }
-        
-        public Integer call () throws Exception {
-            int count = 0;
-            for (Payload p; (p = in.take()) != POISON_PAYLOAD
-                     && (max <= 0 || (max > 0 && out.size() < max));) {
-                byte[] pfp = p.getFpSub().toByteArray();
-//               p.getFpSub()
-                int i = 0;
-                for (; i < fp.length; ++i) {
-                    if ((pfp[i] & fp[i]) != fp[i]) {
-                        break;
-                    }
+
+        SubstructureQuery (final CompiledQuery query, final long stepLimit,
+                           final long timeout, final boolean vf2,
+                           BlockingQueue<Result> out, SearchTask task) {
+            this.query = query;
+            this.stepLimit = stepLimit;
+            this.timeout = timeout;
+            this.vf2 = vf2;
+            this.out = out;
+            this.task = task;
+            this.fp = query.fp;
+            this.fpS = query.fpSim;
+            this.elements = query.elements;
+        }
+
+        boolean verify (Payload p) throws InterruptedException {
+            byte[] pfp = p.getFpSubBytes();
+            int i = 0;
+            for (; i < fp.length; ++i) {
+                int b = i < pfp.length ? pfp[i] : 0;
+                if ((b & fp[i]) != fp[i]) {
+                    break;
                 }
-                
-                if (i == fp.length) {
-                	byte[] pfpSim = p.getFpSim().toByteArray();
-                	int a=0;
-                	int b=0;
+            }
+            
+            boolean screened = i == fp.length;
+            if (screened && elements.length > 0) {
+                // rule out targets without enough atoms of some element
+                byte[] pel = p.getElementBytes();
+                screened = pel == null || ElementCounts.covers(pel, elements);
+            }
+            
+            if (screened) {
+            	byte[] pfpSim = p.getFpSimBytes();
+            	int a=0;
+            	int b=0;
 //                	p.getFpSim().tanimotoSimilarity()
-                	for (i=0; i < pfpSim.length && i < fpS.length; ++i) {
-                         a += Integer.bitCount(pfpSim[i] & fpS[i]);
-                         b += Integer.bitCount(pfpSim[i] | fpS[i]);
+            	for (i=0; i < pfpSim.length && i < fpS.length; ++i) {
+                     a += Integer.bitCount(pfpSim[i] & fpS[i]);
+                     b += Integer.bitCount(pfpSim[i] | fpS[i]);
+                }
+                if(pfpSim.length > fpS.length){
+            	    for(; i < pfpSim.length; i++){
+            	        b+= Integer.bitCount(pfpSim[i]);
                     }
-                    if(pfpSim.length > fpS.length){
-                	    for(; i < pfpSim.length; i++){
-                	        b+= Integer.bitCount(pfpSim[i]);
-                        }
-                    }else{
-                        for(; i < fpS.length; i++){
-                            b+= Integer.bitCount(fpS[i]);
-                        }
+                }else{
+                    for(; i < fpS.length; i++){
+                        b+= Integer.bitCount(fpS[i]);
                     }
-                	
-                	int[] hits = isomorphismSearcher.findMax(p.getMol());
-                	if(hits.length !=0){
-                		 out.put(new Result (p, (double)a/b, hits));
-                         ++count;
-                	}
-                	/*
-                    if (hits != null) {
-                        MolAtom[] atoms = mol.getAtomArray();
-                        for (i = 0; i < hits.length; ++i) {
-                        	
-                            if (hits[i] >= 0){
-                            	//by setting the atom map to something >0
-                            	//we can later highlight that atom
-                            	//when we render the molecules that hit
-                            	//so that's all this does
-                                atoms[hits[i]].setAtomMap(i+1);
-                            }
+                }
+            	
+                IsoMorphismSearcher isomorphismSearcher =
+                    query.borrow(stepLimit, timeout, vf2);
+                int[] hits;
+                try {
+                    hits = isomorphismSearcher.findMax
+                        (p.getStructure(), task.deadline);
+                    if (isomorphismSearcher.isTimedOut())
+                        task.timedOut.incrementAndGet();
+                }
+                finally {
+                    query.release(isomorphismSearcher);
+                }
+            	if(hits.length !=0 && task.claim()){
+            		 out.put(new Result (p, (double)a/b, hits));
+                     return true;
+            	}
+            	/*
+                if (hits != null) {
+                    MolAtom[] atoms = mol.getAtomArray();
+                    for (i = 0; i < hits.length; ++i) {
+                    	
+                        if (hits[i] >= 0){
+                        	//by setting the atom map to something >0
+                        	//we can later highlight that atom
+                        	//when we render the molecules that hit
+                        	//so that's all this does
+                            atoms[hits[i]].setAtomMap(i+1);
                         }
-                        out.put(new Result (p, (double)a/b, hits));
+                    }
+                    out.put(new Result (p, (double)a/b, hits));
+                    ++count;
+                }
+                */
+            }
+            return false;
+        }
+    }
+    
+    /*
+     * the chunks of candidates of a substructure search waiting to be
+     * verified on the fork/join pool. the number of chunks queued or
+     * being verified is bounded by the permits (CHUNKS_PER_THREAD per
+     * thread), while the number of tasks verifying them is bounded by
+     * nthreads: a task drains the queue, and whenever the search has a
+     * thread to spare it forks half of what's left of its chunk, which
+     * another worker of the pool can then steal.
+     */
+    static class ChunkQueue {
+        static final int CHUNKS_PER_THREAD = 4;
+
+        final SubstructureQuery query;
+        final ForkJoinPool pool;
+        final int nthreads;
+        final int capacity;
+        final Semaphore permits;
+        final Queue<Payload[]> chunks = new ConcurrentLinkedQueue<Payload[]>();
+        final AtomicInteger running = new AtomicInteger ();
+
+        ChunkQueue (SubstructureQuery query, ForkJoinPool pool, int nthreads) {
+            this.query = query;
+            this.pool = pool;
+            this.nthreads = nthreads;
+            this.capacity = CHUNKS_PER_THREAD*nthreads;
+            this.permits = new Semaphore (capacity);
+        }
+
+        /*
+         * claim one of the search's threads
+         */
+        boolean tryRun () {
+            for (int r; (r = running.get()) < nthreads; ) {
+                if (running.compareAndSet(r, r+1))
+                    return true;
+            }
+            return false;
+        }
+
+        /*
+         * blocks while the queue is full; false if the search has been
+         * cancelled in the meantime
+         */
+        boolean add (Payload[] chunk) throws InterruptedException {
+            while (!permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (query.task.isCancelled())
+                    return false;
+            }
+            chunks.add(chunk);
+            if (tryRun ()) {
+                try {
+                    pool.execute(new GraphIso (this, null, 0, 0));
+                }
+                catch (RejectedExecutionException ex) {
+                    running.decrementAndGet();
+                    if (chunks.remove(chunk))
+                        permits.release();
+                    throw ex;
+                }
+            }
+            return true;
+        }
+
+        /*
+         * wait for the chunks in flight
+         */
+        void await () {
+            permits.acquireUninterruptibly(capacity);
+            permits.release(capacity);
+        }
+    }
+
+    /*
+     * collects the substructure candidates of each segment into chunks
+     * and queues them for verification. chunks start small so the first
+     * hits come back quickly and double up to MAX_CHUNK_SIZE to amortize
+     * the task overhead.
+     */
+    static class ChunkCollector extends SimpleCollector {
+        static final int MIN_CHUNK_SIZE = 4;
+        static final int MAX_CHUNK_SIZE = 256;
+        
+        final IndexSearcher searcher;
+        final ChunkQueue queue;
+        int docBase;
+        BinaryDocValues sub;
+        BinaryDocValues sim;
+        BinaryDocValues elements;
+        Payload[] chunk = new Payload[MIN_CHUNK_SIZE];
+        int size;
+        int count;
+        boolean terminated;
+
+        ChunkCollector (IndexSearcher searcher, ChunkQueue queue) {
+            this.searcher = searcher;
+            this.queue = queue;
+        }
+
+        void terminate () {
+            terminated = true;
+            throw new CollectionTerminatedException ();
+        }
+        
+        @Override
+        protected void doSetNextReader (LeafReaderContext context)
+            throws IOException {
+            if (terminated || queue.query.task.isCancelled())
+                terminate ();
+            
+            dispatch (); // chunks don't span segments
+            LeafReader reader = context.reader();
+            docBase = context.docBase;
+            sub = reader.getBinaryDocValues(FIELD_FINGERPRINT_SUB);
+            sim = reader.getBinaryDocValues(FIELD_FINGERPRINT_SIM);
+            elements = reader.getBinaryDocValues(FIELD_ELEMENTS);
+        }
+
+        @Override
+        public void collect (int doc) throws IOException {
+            if (queue.query.task.isCancelled())
+                terminate ();
+            
+            Payload p = chunk[size++] = new Payload
+                (searcher, docBase+doc, FingerprintValues.copy(sub, doc),
+                 FingerprintValues.copy(sim, doc));
+            p.elements = FingerprintValues.copy(elements, doc);
+            ++count;
+            if (size == chunk.length)
+                dispatch ();
+        }
+
+        void dispatch () {
+            if (size == 0)
+                return;
+            
+            try {
+                if (!queue.add(size < chunk.length
+                               ? Arrays.copyOf(chunk, size) : chunk))
+                    terminate ();
+            }
+            catch (InterruptedException ex) {
+                throw new ThreadInterruptedException (ex);
+            }
+            chunk = new Payload[Math.min(MAX_CHUNK_SIZE, 2*chunk.length)];
+            size = 0;
+        }
+
+        @Override
+        public boolean needsScores () { return false; }
+    }
+
+    /*
+     * substructure verification as a fork/join task; without a chunk
+     * it drains the queue for as long as there's anything in it,
+     * otherwise it verifies chunk[lo, hi) as forked off by another task.
+     * each task holds one of the search's threads.
+     */
+    static class GraphIso extends RecursiveAction {
+        private static final long serialVersionUID = 1l;
+        
+        final ChunkQueue queue;
+        final Payload[] chunk;
+        final int lo, hi;
+
+        GraphIso (ChunkQueue queue, Payload[] chunk, int lo, int hi) {
+            this.queue = queue;
+            this.chunk = chunk;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute () {
+            if (chunk != null) {
+                try {
+                    verify (chunk, lo, hi);
+                }
+                finally {
+                    queue.running.decrementAndGet();
+                }
+                return;
+            }
+
+            do {
+                for (Payload[] c; (c = queue.chunks.poll()) != null; ) {
+                    try {
+                        verify (c, 0, c.length);
+                    }
+                    finally {
+                        queue.permits.release();
+                    }
+                }
+                queue.running.decrementAndGet();
+                // a chunk queued while the thread was being given up
+                // would otherwise be left behind
+            }
+            while (!queue.chunks.isEmpty() && queue.tryRun ());
+        }
+
+        /*
+         * forked halves are joined, so a chunk is done once this returns
+         */
+        void verify (Payload[] chunk, int lo, int hi) {
+            List<GraphIso> forks = new ArrayList<GraphIso>();
+            int end = hi;
+            for (int i = lo; i < end && !queue.query.task.isCancelled(); ++i) {
+                if (end - i > 1 && queue.tryRun ()) {
+                    int mid = (i + end) >>> 1;
+                    GraphIso half = new GraphIso (queue, chunk, mid, end);
+                    half.fork();
+                    forks.add(half);
+                    end = mid;
+                }
+                try {
+                    queue.query.verify(chunk[i]);
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                catch (RuntimeException ex) {
+                    logger.warning("Can't verify document "
+                                   +chunk[i].getId()+": "+ex);
+                }
+            }
+            for (GraphIso half : forks)
+                half.join();
+        }
+    }
+
+    /*
+     * brute-force similarity over the fingerprint matrix; the workers
+     * share the list of chunks and pull the next one when done
+     */
+    static class MatrixScan implements Callable<Integer> {
+        static final int CHUNK_SIZE = 4096;
+        
+        final IndexSearcher searcher;
+        final List<int[]> chunks; // slice, start, end
+        final List<FingerprintMatrix.Slice> slices;
+        final AtomicInteger next;
+        final BlockingQueue<Result> out;
+        final long[] query;
+        final SimilarityMetric metric;
+        final SearchTask task;
+        final double threshold;
+
+        MatrixScan (IndexSearcher searcher,
+                    List<FingerprintMatrix.Slice> slices,
+                    List<int[]> chunks, AtomicInteger next,
+                    BlockingQueue<Result> out, long[] query,
+                    SimilarityMetric metric,
+                    SearchTask task, double threshold) {
+            this.searcher = searcher;
+            this.slices = slices;
+            this.chunks = chunks;
+            this.next = next;
+            this.out = out;
+            this.query = query;
+            this.metric = metric;
+            this.task = task;
+            this.threshold = threshold;
+        }
+
+        static List<int[]> chunks (List<FingerprintMatrix.Slice> slices) {
+            List<int[]> chunks = new ArrayList<int[]>();
+            for (int i = 0; i < slices.size(); ++i) {
+                FingerprintMatrix.Slice s = slices.get(i);
+                for (int j = s.start; j < s.end; j += CHUNK_SIZE)
+                    chunks.add(new int[]{i, j, Math.min(s.end, j+CHUNK_SIZE)});
+            }
+            return chunks;
+        }
+
+        public Integer call () throws Exception {
+            int count = 0;
+            for (int c; !task.isCancelled()
+                     && (c = next.getAndIncrement()) < chunks.size(); ) {
+                int[] chunk = chunks.get(c);
+                FingerprintMatrix.Slice slice = slices.get(chunk[0]);
+                FingerprintMatrix.Segment seg = slice.segment;
+                for (int r = chunk[1]; r < chunk[2]; ++r) {
+                    int doc = seg.doc(r);
+                    if (slice.liveDocs != null && !slice.liveDocs.get(doc))
+                        continue;
+                    double similarity = seg.similarity(r, query, metric);
+                    if (similarity >= threshold && task.claim()) {
                         ++count;
+                        out.put(new Result (new Payload
+                                            (searcher, slice.docBase+doc,
+                                             null, null), similarity, null));
                     }
-                    */
                 }
             }
             return count;
         }
     }
 
+    /*
+     * keeps the k most similar documents seen so far in a min-heap; the
+     * fingerprints are read from docvalues, and nothing else is loaded
+     * until the search is over
+     */
+    static class TopKCollector extends SimpleCollector {
+        static class Hit {
+            final int doc;
+            final double similarity;
+
+            Hit (int doc, double similarity) {
+                this.doc = doc;
+                this.similarity = similarity;
+            }
+        }
+
+        final IndexSearcher searcher;
+        final byte[] query;
+        final SimilarityMetric metric;
+        final int k;
+        final SearchTask task;
+        // worst hit first; among equals the later document goes first
+        final PriorityQueue<Hit> heap = new PriorityQueue<Hit>
+            ((a, b) -> a.similarity != b.similarity
+             ? Double.compare(a.similarity, b.similarity)
+             : Integer.compare(b.doc, a.doc));
+        BinaryDocValues sim;
+        int docBase;
+
+        TopKCollector (IndexSearcher searcher, byte[] query,
+                       SimilarityMetric metric, int k, SearchTask task) {
+            this.searcher = searcher;
+            this.query = query;
+            this.metric = metric;
+            this.k = k;
+            this.task = task;
+        }
+
+        /*
+         * the similarity a document needs to make it into the top k
+         */
+        double cutoff () {
+            return heap.size() < k ? -1. : heap.peek().similarity;
+        }
+
+        @Override
+        public boolean needsScores () { return false; }
+
+        @Override
+        protected void doSetNextReader (LeafReaderContext context)
+            throws IOException {
+            if (task.isCancelled())
+                throw new CollectionTerminatedException ();
+            docBase = context.docBase;
+            sim = context.reader().getBinaryDocValues(FIELD_FINGERPRINT_SIM);
+        }
+
+        @Override
+        public void collect (int doc) throws IOException {
+            double s;
+            if (sim != null) {
+                BytesRef ref = sim.get(doc);
+                s = metric.similarity
+                    (query, ref.bytes, ref.offset, ref.length);
+            }
+            else {
+                byte[] fp = new Payload (searcher, docBase+doc, null, null)
+                    .getFpSimBytes();
+                s = metric.similarity(query, fp);
+            }
+
+            if (heap.size() < k)
+                heap.add(new Hit (docBase+doc, s));
+            else if (s > heap.peek().similarity) {
+                heap.poll();
+                heap.add(new Hit (docBase+doc, s));
+            }
+        }
+    }
+
+
     static class Output implements Callable<Integer> {
         final BlockingQueue<Payload> in;
         final BlockingQueue<Result> out;
-        final int max;
+        final SearchTask task;
         Output (BlockingQueue<Payload> in,
                 BlockingQueue<Result> out,
-                int max) {
+                SearchTask task) {
             this.in = in;
             this.out = out;
-            this.max = max;
+            this.task = task;
         }
 
         public Integer call () throws Exception {
             int count = 0;
             for (Payload p; (p = in.take()) != POISON_PAYLOAD
-                     && (max <= 0 || (max > 0 && out.size() < max));) {
+                     && task.claim();) {
                 out.put(new Result (p, null,null));
+                ++count;
             }
             return count;
         }
@@ -806,8 +1892,42 @@ public class StructureIndexer {
     private Analyzer indexAnalyzer;
     private FacetsConfig facetsConfig;
     private Codebook[] codebooks;
+    private final Map<String, Integer> codebookIndex =
+        new HashMap<String, Integer>();
+    private final ConcurrentMap<Object, int[][]> segmentCodebookCounts =
+        new ConcurrentHashMap<Object, int[][]>();
+    private volatile CodebookStats codebookStats;
+    private volatile FingerprintMatrix fingerprintMatrix;
+    // element statistics for planning the isomorphism matching order
+    private final MatchOrder matchOrder = new MatchOrder ();
+    // compiled substructure queries by query text, least recently used
+    // first
+    private volatile int queryCacheSize = DEFAULT_QUERY_CACHE_SIZE;
+    private final Map<String, CompiledQuery> queryCache =
+        new LinkedHashMap<String, CompiledQuery>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry
+                (Map.Entry<String, CompiledQuery> eldest) {
+                return size () > queryCacheSize;
+            }
+        };
+    private volatile long queryTimeout; // millis; 0 for none
+    private volatile long targetTimeout; // millis; 0 for none
+    private volatile long targetStepLimit; // 0 for none
+    private volatile boolean vf2Verification;
     
     private ExecutorService threadPool;
+    /*
+     * runs the screens and the tasks that wait on the workers to poison
+     * the results. it's kept apart from the (possibly caller supplied
+     * and bounded) thread pool, which only ever runs the workers
+     * themselves, so a search can't deadlock waiting for its own
+     * producer to get a thread.
+     */
+    private final ExecutorService screenPool =
+        Executors.newCachedThreadPool();
+    private final ForkJoinPool verifyPool;
+    private final boolean localVerifyPool;
     private boolean localThreadPool = false;
     private final ConcurrentMap<IndexReader, Long>
         readerBuffer = new ConcurrentHashMap<IndexReader, Long>();
@@ -837,6 +1957,15 @@ public class StructureIndexer {
     public static StructureIndexer openReadOnly (File dir) throws IOException {
         return new StructureIndexer (dir);
     }
+
+    /**
+     * Open a read-only index with the given directory implementation,
+     * e.g., DirectoryFactory.MMAP_PRELOAD for search replicas.
+     */
+    public static StructureIndexer openReadOnly
+        (File dir, DirectoryFactory factory) throws IOException {
+        return new StructureIndexer (dir, true, factory);
+    }
     
     public static StructureIndexer open (File dir) throws IOException {
         return new StructureIndexer (dir, false);
@@ -847,12 +1976,29 @@ public class StructureIndexer {
     }
     
     public StructureIndexer (File dir, boolean readOnly) throws IOException {
-        this (dir, readOnly, Executors.newCachedThreadPool());
+        this (dir, readOnly, DirectoryFactory.NIOFS);
+    }
+
+    public StructureIndexer (File dir, boolean readOnly,
+                             DirectoryFactory factory) throws IOException {
+        this (dir, readOnly, Executors.newCachedThreadPool(), factory);
         localThreadPool = true;
     }
     
     public StructureIndexer (File dir, boolean readOnly,
                              ExecutorService threadPool) throws IOException {
+        this (dir, readOnly, threadPool, DirectoryFactory.NIOFS);
+    }
+    
+    /**
+     * The thread pool runs the search workers. If it's a ForkJoinPool
+     * it also verifies the substructure candidates; otherwise the
+     * indexer keeps a fork/join pool of its own, sized to the machine
+     * and shut down with the indexer.
+     */
+    public StructureIndexer (File dir, boolean readOnly,
+                             ExecutorService threadPool,
+                             DirectoryFactory factory) throws IOException {
         if(!dir.exists()){
             dir.mkdirs();
         }
@@ -860,8 +2006,19 @@ public class StructureIndexer {
             throw new IllegalArgumentException ("Not a directory: "+dir);
         if (threadPool == null)
             throw new IllegalArgumentException ("Thread pool is null");
+        if (factory == null)
+            throw new IllegalArgumentException ("Directory factory is null");
         
         this.threadPool = threadPool;
+        if (threadPool instanceof ForkJoinPool) {
+            verifyPool = (ForkJoinPool)threadPool;
+            localVerifyPool = false;
+        }
+        else {
+            verifyPool = new ForkJoinPool
+                (Runtime.getRuntime().availableProcessors());
+            localVerifyPool = true;
+        }
         this.baseDir = dir;
 
         indexAnalyzer = createIndexAnalyzer ();
@@ -876,10 +2033,9 @@ public class StructureIndexer {
         if (!facet.exists())
             facet.mkdirs();
 
-        indexDir = new NIOFSDirectory(index.toPath(), NoLockFactory.INSTANCE);
-        metaDir = new NIOFSDirectory (meta.toPath(), NoLockFactory.INSTANCE);
-        facetDir = new NIOFSDirectory
-            (facet.toPath(), NoLockFactory.INSTANCE);
+        indexDir = factory.open(index.toPath());
+        metaDir = factory.open(meta.toPath());
+        facetDir = factory.open(facet.toPath());
 
         if (!readOnly) {
             metaWriter = new IndexWriter
@@ -896,9 +2052,12 @@ public class StructureIndexer {
                 for (int i = 0; i < codebooks.length; ++i) {
                     codebooks[i] = new Codebook (32*FPSIZE);
                 }
+                saveCodebooks ();
             }
-            else {
+            else if ((codebooks = loadSnapshot ()) == null) {
                 codebooks = load (DirectoryReader.open(metaWriter, true));
+                if (saveCodebooks () == 0)
+                    saveSnapshot ();
             }
             indexReader = DirectoryReader.open(indexWriter, true);
             facetWriter = new DirectoryTaxonomyWriter (facetDir);
@@ -913,9 +2072,12 @@ public class StructureIndexer {
                 }, 5, 2, TimeUnit.SECONDS);
         }
         else {
-            codebooks = load (DirectoryReader.open(metaDir));
+            if ((codebooks = loadSnapshot ()) == null)
+                codebooks = load (DirectoryReader.open(metaDir));
             indexReader = DirectoryReader.open(indexDir);           
         }
+        for (int i = 0; i < codebooks.length; ++i)
+            codebookIndex.put(codebooks[i].getName(), i);
         /*
         for (Codebook cb : codebooks) {
             logger.info("Codebook "+cb);
@@ -978,6 +2140,74 @@ public class StructureIndexer {
     }
 
     public File getBasePath () { return baseDir; }
+
+    /**
+     * Enable or disable the memory mapped fingerprint matrix (kept in
+     * the fpmatrix directory next to the index) that is used to scan
+     * the candidates of an unfiltered similarity search. The matrices
+     * are built in the background, and searches use the index until
+     * they're ready; a read-only indexer only uses matrices that are
+     * already there.
+     */
+    public void setFingerprintMatrix (boolean enabled) {
+        if (enabled && fingerprintMatrix == null) {
+            fingerprintMatrix = new FingerprintMatrix
+                (new File (baseDir, "fpmatrix"), indexWriter == null,
+                 screenPool);
+        }
+        else if (!enabled && fingerprintMatrix != null) {
+            fingerprintMatrix.close();
+            fingerprintMatrix = null;
+        }
+    }
+    public boolean hasFingerprintMatrix () {
+        return fingerprintMatrix != null;
+    }
+
+    /**
+     * Deadline (in milliseconds) for each search; once it's reached the
+     * search stops and the results are partial (see
+     * ResultEnumeration.isExpired()); a candidate being verified when
+     * it passes is abandoned, so substructure searches with a timeout
+     * are verified with VF2. 0 for none.
+     */
+    public void setQueryTimeout (long millis) {
+        queryTimeout = millis;
+    }
+    public long getQueryTimeout () { return queryTimeout; }
+
+    /**
+     * Budget for matching a single substructure candidate, either in
+     * milliseconds or in states explored (0 for no limit). Candidates
+     * that run out are skipped and counted in
+     * ResultEnumeration.getTimedOutCount(). Only the VF2 matcher can
+     * give up on a candidate, so a budget implies VF2 verification (see
+     * setVF2Verification); the query timeout still bounds the search as
+     * a whole.
+     */
+    public void setTargetBudget (long stepLimit, long millis) {
+        targetStepLimit = stepLimit;
+        targetTimeout = millis;
+    }
+
+    /**
+     * Verify substructure candidates with the VF2 matcher (planned from
+     * the element statistics of the index) rather than the backend
+     * MolSearcher. VF2 compares elements, aromaticity and bond types,
+     * with untyped query atoms and bonds matching anything, but not
+     * charges, isotopes or stereo.
+     */
+    public void setVF2Verification (boolean enabled) {
+        vf2Verification = enabled;
+    }
+    public boolean isVF2Verification () { return vf2Verification; }
+
+    protected SearchTask newSearchTask (int max) {
+        long timeout = queryTimeout;
+        return new SearchTask
+            (max, timeout > 0 ? System.nanoTime()
+             + TimeUnit.MILLISECONDS.toNanos(timeout) : 0l);
+    }
     public String[] getFields () {
         Set<String> fields = new TreeSet<String>();
         try {
@@ -1033,6 +2263,8 @@ public class StructureIndexer {
             for (IndexReader reader : readerBuffer.keySet()) {
                 IOUtil.closeQuietly(reader);
             }
+            if (fingerprintMatrix != null)
+                fingerprintMatrix.close();
 
             IOUtil.closeQuietly(indexDir);
             IOUtil.closeQuietly(facetDir);
@@ -1040,26 +2272,166 @@ public class StructureIndexer {
             if (localThreadPool) {
                 threadPool.shutdown();
             }
+            if (localVerifyPool)
+                verifyPool.shutdown();
+            screenPool.shutdown();
+
+    }
+
+    protected void update (Codebook cb) throws IOException {
+        Term term = new Term (FIELD_ID, cb.getName());
+        //logger.info("Persist codebook "+cb);    
+        metaWriter.updateDocument(term, Codebook.instrument(cb));
+    }
+
+    /*
+     * only the codebooks that have changed since they were last
+     * persisted are written, so the meta index write load is
+     * proportional to the rate of change rather than the number of
+     * codebooks
+     */
+    protected int saveCodebooks () throws IOException {
+        Map<Codebook, int[]> saved = new LinkedHashMap<Codebook, int[]>();
+        for (Codebook cb : codebooks) {
+            if (cb.dirty) {
+                saved.put(cb, cb.getDictionary());
+                update (cb);
+            }
+        }
+        if (!saved.isEmpty()) {
+            metaWriter.commit();
+            // only once the commit has gone through, so a failure above
+            // leaves the codebooks to be saved again on the next flush;
+            // a dictionary changed in the meantime stays dirty
+            for (Map.Entry<Codebook, int[]> me : saved.entrySet())
+                me.getKey().clean(me.getValue());
+            saveSnapshot ();
+        }
+        return saved.size();
+    }
+
+    /*
+     * snapshot layout (all ints are vints):
+     *   header | meta commit generation (long) | dictionary size |
+     *   eqv table: for each code, count followed by the codes |
+     *   number of codebooks | for each: name, dictionary size, bits |
+     *   footer
+     * the snapshot is only used if the generation matches the current
+     * commit of the meta index, which remains the source of truth.
+     */
+    protected void saveSnapshot () throws IOException {
+        long gen = SegmentInfos.getLastCommitGeneration(metaDir);
+        String tmp = CODEBOOK_SNAPSHOT+".tmp";
+        try (IndexOutput out = metaDir.createOutput(tmp, IOContext.DEFAULT)) {
+            CodecUtil.writeHeader(out, CODEBOOK_SNAPSHOT_CODEC,
+                                  CODEBOOK_SNAPSHOT_VERSION);
+            out.writeLong(gen);
+            int[][] eqv = Codebook.equivalences(CODESIZE);
+            out.writeVInt(CODESIZE);
+            for (int[] codes : eqv) {
+                out.writeVInt(codes.length);
+                for (int c : codes)
+                    out.writeVInt(c);
+            }
+            out.writeVInt(codebooks.length);
+            for (Codebook cb : codebooks) {
+                out.writeString(cb.getName());
+                out.writeVInt(cb.getDictionary().length);
+                for (int b : cb.getDictionary())
+                    out.writeVInt(b);
+            }
+            CodecUtil.writeFooter(out);
+        }
+        metaDir.sync(Collections.singleton(tmp));
+        if (Arrays.asList(metaDir.listAll()).contains(CODEBOOK_SNAPSHOT))
+            metaDir.deleteFile(CODEBOOK_SNAPSHOT);
+        metaDir.renameFile(tmp, CODEBOOK_SNAPSHOT);
+    }
+
+    /*
+     * nothing read from the snapshot is used, or shared with other
+     * indexers through Codebook.EQV, until the footer checksum has been
+     * verified; sizes are bounded before anything is allocated so that
+     * a damaged file can't blow up the heap. any problem with the
+     * snapshot falls back to the meta index.
+     */
+    protected Codebook[] loadSnapshot () throws IOException {
+        if (!Arrays.asList(metaDir.listAll()).contains(CODEBOOK_SNAPSHOT))
+            return null;
+        
+        long gen = SegmentInfos.getLastCommitGeneration(metaDir);
+        try (ChecksumIndexInput in = metaDir.openChecksumInput
+             (CODEBOOK_SNAPSHOT, IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEBOOK_SNAPSHOT_CODEC,
+                                  CODEBOOK_SNAPSHOT_VERSION,
+                                  CODEBOOK_SNAPSHOT_VERSION);
+            if (in.readLong() != gen) {
+                logger.info("Codebook snapshot is stale; ignoring");
+                return null;
+            }
+            int size = in.readVInt();
+            if (size != CODESIZE)
+                throw new CorruptIndexException
+                    ("Invalid dictionary size: "+size, in);
+            int[][] eqv = new int[1<<size][];
+            for (int i = 0; i < eqv.length; ++i) {
+                eqv[i] = new int[checkRange (in, in.readVInt(), eqv.length)];
+                for (int j = 0; j < eqv[i].length; ++j)
+                    eqv[i][j] = checkRange
+                        (in, in.readVInt(), eqv.length-1);
+            }
+            
+            Codebook[] cbooks = new Codebook
+                [checkRange (in, in.readVInt(), CODEBOOKS)];
+            for (int i = 0; i < cbooks.length; ++i) {
+                String name = in.readString();
+                int[] dict = new int[checkRange (in, in.readVInt(), 32)];
+                for (int j = 0; j < dict.length; ++j)
+                    dict[j] = in.readVInt();
+                cbooks[i] = dict.length == size
+                    ? new Codebook (name, dict, eqv)
+                    : new Codebook (name, dict);
+                cbooks[i].dirty = false;
+            }
+            CodecUtil.checkFooter(in);
 
+            int[][] prev = Codebook.EQV.putIfAbsent(size, eqv);
+            if (prev != null) {
+                for (Codebook cb : cbooks)
+                    if (cb.eqv == eqv)
+                        cb.eqv = prev;
+            }
+            return cbooks;
+        }
+        catch (IOException ex) {
+            logger.warning("Can't use codebook snapshot; "
+                           +"loading the meta index instead: "+ex);
+        }
+        return null;
     }
 
-    protected void update (Codebook cb) throws IOException {
-        Term term = new Term (FIELD_ID, cb.getName());
-        //logger.info("Persist codebook "+cb);    
-        metaWriter.updateDocument(term, Codebook.instrument(cb));
+    static int checkRange (ChecksumIndexInput in, int value, int max)
+        throws CorruptIndexException {
+        if (value < 0 || value > max)
+            throw new CorruptIndexException
+                ("Value "+value+" out of range [0,"+max+"]", in);
+        return value;
     }
 
     synchronized void flush () {
+        try {
+            saveCodebooks ();
+        }
+        catch (IOException ex) {
+            logger.warning("Can't save codebooks: "+ex.getMessage());
+        }
+        
         if (updatesSinceSaved.get() > 0) {
             /*
             logger.info("### flushing "
                         +updatesSinceSaved.get()+" updates...");
             */
             try {
-                for (Codebook cb : codebooks) {
-                    update (cb);
-                }
-                metaWriter.commit();
                 indexWriter.commit();
                 facetWriter.commit();
                 updatesSinceSaved.set(0);
@@ -1073,10 +2445,13 @@ public class StructureIndexer {
     protected Codebook[] load (DirectoryReader reader) throws IOException {
         try {
             Codebook[] cbooks = new Codebook[reader.numDocs()];
-            for (int i = 0; i < reader.numDocs(); ++i) {
-                Document doc = reader.document(i);
-                cbooks[i] = Codebook.load(doc);
-                //logger.info("Loading doc "+i+" "+cbooks[i]);
+            Bits live = MultiFields.getLiveDocs(reader);
+            for (int i = 0, j = 0; i < reader.maxDoc(); ++i) {
+                if (live == null || live.get(i)) {
+                    Document doc = reader.document(i);
+                    cbooks[j++] = Codebook.load(doc);
+                    //logger.info("Loading doc "+i+" "+cbooks[i]);
+                }
             }
             return cbooks;
         }
@@ -1159,25 +2534,90 @@ public class StructureIndexer {
     
     public void add (String source, String id, Chemical struc)
         throws IOException {
+        write (Collections.singletonList
+               (instrument (new IndexRecord (source, id, struc))));
+    }
+
+    /**
+     * Index all records using as many threads as there are processors.
+     * Records are instrumented in parallel and written in blocks; a
+     * record that can't be instrumented is logged and skipped.
+     * @return the number of records written
+     */
+    public long addAll (Iterable<IndexRecord> records) throws IOException {
+        return addAll (records, Runtime.getRuntime().availableProcessors());
+    }
+
+    public long addAll (Iterable<IndexRecord> records, int nthreads)
+        throws IOException {
+        if (indexWriter == null)
+            throw new RuntimeException ("Index is read-only!");
+        
+        IndexPipeline pipeline = new IndexPipeline (this, nthreads);
+        try {
+            for (IndexRecord r : records)
+                pipeline.add(r);
+        }
+        finally {
+            pipeline.close();
+        }
+        return pipeline.getCount();
+    }
+
+    public long addAll (Stream<IndexRecord> records) throws IOException {
+        return addAll (records::iterator);
+    }
+
+    public long addAll (Stream<IndexRecord> records, int nthreads)
+        throws IOException {
+        return addAll (records::iterator, nthreads);
+    }
+
+    /**
+     * Build the fully instrumented document for the given record
+     * without writing it to the index. This is the expensive part of
+     * adding a structure and is safe to call from multiple threads.
+     */
+    protected IndexRecord instrument (IndexRecord rec) throws IOException {
         if (indexWriter == null)
             throw new RuntimeException ("Index is read-only!");
         
         Document doc = new Document ();
-        doc.add(new StringField (FIELD_ID, id, YES));
-        if (source != null) {
-            doc.add(new FacetField (FIELD_SOURCE, source));
-            doc.add(new StringField (FIELD_SOURCE, source, YES));
-            doc.add(new TextField (FIELD_TEXT, source, NO));
-        }
-        doc.add(new TextField (FIELD_TEXT, id, NO));
-        instrument (doc, struc);
-        doc = facetsConfig.build(facetWriter, doc);
-        indexWriter.addDocument(doc);
-        updated ();
+        doc.add(new StringField (FIELD_ID, rec.id, YES));
+        if (rec.source != null) {
+            doc.add(new FacetField (FIELD_SOURCE, rec.source));
+            doc.add(new StringField (FIELD_SOURCE, rec.source, YES));
+            doc.add(new TextField (FIELD_TEXT, rec.source, NO));
+        }
+        doc.add(new TextField (FIELD_TEXT, rec.id, NO));
+        instrument (doc, rec.chem);
+        rec.doc = facetsConfig.build(facetWriter, doc);
+        return rec;
+    }
+
+    /**
+     * Write a block of records previously instrumented with
+     * {@link #instrument(IndexRecord)}.
+     */
+    protected void write (List<IndexRecord> batch) throws IOException {
+        if (indexWriter == null)
+            throw new RuntimeException ("Index is read-only!");
+        if (batch.isEmpty())
+            return;
+        
+        List<Document> docs = new ArrayList<Document>(batch.size());
+        for (IndexRecord r : batch)
+            docs.add(r.doc);
+        indexWriter.addDocuments(docs);
+        updated (batch.size());
     }
 
     protected void updated () throws IOException {
-        updatesSinceSaved.incrementAndGet();
+        updated (1);
+    }
+
+    protected void updated (int count) throws IOException {
+        updatesSinceSaved.addAndGet(count);
         lastModified.set(System.currentTimeMillis());
     }
 
@@ -1214,7 +2654,6 @@ public class StructureIndexer {
             int code = cb.encode(fingerprintSub);
 //            System.out.println("code book " + i + " = " + code);
             if (code != 0) {
-                cb.incr(code); // this must be in-sync with the document count!
                 String encodedCB = cb.encode(code);
                 doc.add(new StringField
                         (FIELD_CODEBOOK,encodedCB , NO));
@@ -1253,17 +2692,26 @@ public class StructureIndexer {
             doc.add(new TextField (FIELD_NAME, name, NO));
             doc.add(new TextField (FIELD_TEXT, name, NO));
         }
-        doc.add(new StoredField (FIELD_FINGERPRINT_SUB, fp));
-        doc.add(new StoredField (FIELD_FINGERPRINT_SIM, fpSim));
+        // docvalues only; older segments still have them stored
+        doc.add(new BinaryDocValuesField
+                (FIELD_FINGERPRINT_SUB, new BytesRef (fp)));
+        doc.add(new BinaryDocValuesField
+                (FIELD_FINGERPRINT_SIM, new BytesRef (fpSim)));
         
         doc.add(new IntField (FIELD_POPCNT, popcnt (fpSim), NO));
+        doc.add(new BinaryDocValuesField
+                (FIELD_POPCNT_BLOCKS, new BytesRef (blockPopcnt (fpSim))));
         
         
        
         doc.add(new StoredField(FIELD_MOLFILE, indexMolHExp));
         
        
-       doc.add(new StringField (FIELD_FORMULA, chemical.getFormula(), YES));
+        String formula = chemical.getFormula();
+        doc.add(new StringField (FIELD_FORMULA, formula, YES));
+        doc.add(new BinaryDocValuesField
+                (FIELD_ELEMENTS, new BytesRef
+                 (ElementCounts.encode(ElementCounts.pairs(formula)))));
         doc.add(new IntField (FIELD_NATOMS, chemical.getAtomCount(), NO));
         doc.add(new IntField (FIELD_NBONDS, chemical.getBondCount(), NO));
         doc.add(new DoubleField (FIELD_MOLWT,chemical.getMass(), NO));
@@ -1289,10 +2737,6 @@ public class StructureIndexer {
         if (indexWriter == null)
             throw new RuntimeException ("Index is read-only!");
         
-        /* TODO: this method should only be one line but because we have 
-         * to keep the document count in sync with the codebooks, we need
-         * to do this..
-         */
         Query q = null;
         if (source != null)
             q = new TermQuery (new Term (FIELD_SOURCE, source));
@@ -1315,65 +2759,125 @@ public class StructureIndexer {
             throw new IllegalArgumentException
                 ("Either source or id must be specified!");
             
-        int total = searcher.getIndexReader().numDocs();
-        TopDocs hits = searcher.search(q, total);
-        
-        logger.info("Deleting "+id+" ["+source+"].."+hits.totalHits
-                    +"/"+total);
-        for (int i = 0; i < hits.totalHits; ++i) {
-            Document doc = searcher.doc(hits.scoreDocs[i].doc);
-            for (String code : doc.getValues(FIELD_CODEBOOK))
-                for (Codebook cb : codebooks) {
-                    int c = cb.decode(code);
-                    if (c >= 0)
-                        cb.decr(c);
-                }
-        }
-        
+        logger.info("Deleting "+id+" ["+source+"]..");
         indexWriter.deleteDocuments(q);
         updated ();
     }
 
     public void remove (String source) throws IOException {
-        // this potentially can dramatically alter the counts, so we need
         if (indexWriter == null)
             throw new RuntimeException ("Index is read-only!");
 
         indexWriter.deleteDocuments(new Term (FIELD_SOURCE, source));
         updated ();
-        
-        // do update in background
-        threadPool.submit(new Runnable () {
-                public void run () {
-                    try {
-                        IndexSearcher searcher = getIndexSearcher ();
-                        for (Codebook cb : codebooks) {
-                            cb.adjustCounts(searcher);
-                        }
-                    }
-                    catch (IOException ex) {
-                        ex.printStackTrace();
-                    }
-                }
-            });
     }
 
     public Codebook[] getCodebooks () { return codebooks; }
+
+    public CodebookStats getCodebookStats () throws IOException {
+        return getCodebookStats (getReader (true));
+    }
+
+    /*
+     * the stats are cached per reader generation and the counts of each
+     * segment are cached for as long as the segment is open, so a new
+     * reader only has to look at the segments that have changed
+     */
+    protected CodebookStats getCodebookStats (IndexReader reader)
+        throws IOException {
+        Object key = reader.getCombinedCoreAndDeletesKey();
+        CodebookStats stats = codebookStats;
+        if (stats == null || stats.key != key) {
+            int[][] counts = new int[codebooks.length][1<<CODESIZE];
+            for (LeafReaderContext ctx : reader.leaves()) {
+                int[][] c = getCodebookCounts (ctx.reader());
+                for (int i = 0; i < counts.length; ++i)
+                    for (int j = 1; j < counts[i].length; ++j)
+                        counts[i][j] += c[i][j];
+            }
+            codebookStats = stats = new CodebookStats (key, counts);
+        }
+        return stats;
+    }
+
+    protected int[][] getCodebookCounts (LeafReader reader)
+        throws IOException {
+        Object key = reader.getCoreCacheKey();
+        int[][] counts = segmentCodebookCounts.get(key);
+        if (counts == null) {
+            counts = new int[codebooks.length][1<<CODESIZE];
+            Terms terms = reader.terms(FIELD_CODEBOOK);
+            if (terms != null) {
+                TermsEnum en = terms.iterator();
+                for (BytesRef ref; (ref = en.next()) != null; ) {
+                    String term = ref.utf8ToString();
+                    int len = term.length() - 3;
+                    if (len <= 0)
+                        continue;
+                    Integer cb = codebookIndex.get(term.substring(0, len));
+                    Integer code = CODEWORD_INDEX.get(term.substring(len));
+                    if (cb != null && code != null)
+                        counts[cb][code] = en.docFreq();
+                }
+            }
+            
+            if (segmentCodebookCounts.putIfAbsent(key, counts) == null)
+                reader.addCoreClosedListener
+                    (k -> segmentCodebookCounts.remove(k));
+        }
+        return counts;
+    }
     public long lastModified () { return lastModified.get(); }
     
     public ResultEnumeration substructure (String query, Query... filters)
         throws Exception {
-        return substructure (query, -1, 2, filters);
+        return substructure (query, -1, 0, filters);
     }
 
     public ResultEnumeration substructure
         (String query, int max) throws Exception {
-        return substructure (query, max, 2, (Query [])null);
+        return substructure (query, max, 0, (Query [])null);
     }
 
+    /**
+     * Substructure search verifying the candidates on at most nthreads
+     * threads of the verification pool at a time; 0 (the default of the
+     * other overloads) lets the search use the whole pool.
+     */
     public ResultEnumeration substructure
         (String query, int max, int nthreads, Query... filters)
         throws Exception {
+        IndexSearcher searcher = getIndexSearcher ();
+        return substructure (searcher, getCompiledQuery (searcher, query),
+                             max, nthreads, filters);
+    }
+
+    /*
+     * the compiled query of the query text, from the cache if it has
+     * been seen recently
+     */
+    protected CompiledQuery getCompiledQuery
+        (IndexSearcher searcher, String query) throws Exception {
+        // the text is the key as given; whitespace is significant in
+        // molfiles
+        if (queryCacheSize <= 0)
+            return compile (searcher, parseQuery (query));
+
+        CompiledQuery cq;
+        synchronized (queryCache) {
+            cq = queryCache.get(query);
+        }
+        if (cq == null) {
+            // compiling twice on a race is harmless
+            cq = compile (searcher, parseQuery (query));
+            synchronized (queryCache) {
+                queryCache.put(query, cq);
+            }
+        }
+        return cq;
+    }
+
+    protected Chemical parseQuery (String query) throws IOException {
     	//query string could be a mol or a smiles use reader
        Chemical chemical = Chemical.parse(query);
         //GSRS-1095 check for aromatized bonds
@@ -1393,17 +2897,67 @@ public class StructureIndexer {
 //        if(!chemical.hasCoordinates()){
 //            chemical.generateCoordinates();
 //        }
-        return substructure (chemical, max, nthreads, filters);
+        return chemical;
+    }
+
+    /**
+     * Set the number of compiled substructure queries kept for reuse by
+     * the query text; 0 disables the cache.
+     */
+    public void setQueryCacheSize (int size) {
+        synchronized (queryCache) {
+            queryCacheSize = size;
+            queryCache.clear();
+        }
+    }
+    public int getQueryCacheSize () { return queryCacheSize; }
+
+    /**
+     * Prepare a substructure query for (repeated) searching. The query
+     * is aromatized in place.
+     */
+    public CompiledQuery compile (Chemical query) throws IOException {
+        return compile (getIndexSearcher (), query);
+    }
+
+    protected CompiledQuery compile (IndexSearcher searcher, Chemical query)
+        throws IOException {
+        processQuery(query);
+        Chemical copyr=processQueryForFP(query);
+        
+        Fingerprint qfp = fingerPrinterSub.computeFingerprint(copyr);
+        Fingerprint qfpSim = fingerPrinterSim.computeFingerprint(copyr);
+
+        int[][] codes = new int[codebooks.length][];
+        for (int i = 0; i < codebooks.length; ++i)
+            codes[i] = codebooks[i].apply(qfp);
+
+        // the VF2 graph and plan are only made if they're used
+        return new CompiledQuery
+            (query, MolSearcherFactory.create(query).orElse(null),
+             qfp, qfpSim, codes);
+    }
+
+    public ResultEnumeration substructure
+        (CompiledQuery query, int max, Query... filters) throws Exception {
+        return substructure (getIndexSearcher (), query, max, 0, filters);
+    }
+
+    public ResultEnumeration substructure
+        (CompiledQuery query, int max, int nthreads, Query... filters)
+        throws Exception {
+        return substructure
+            (getIndexSearcher (), query, max, nthreads, filters);
     }
 
     public ResultEnumeration substructure
         (Chemical query) throws Exception {
-        return substructure (query, -1, 2, (Query [])null);
+        return substructure (query, -1, 0, (Query [])null);
     }
     
     public ResultEnumeration substructure
         (Chemical query, Query... filters) throws Exception {
-        return substructure (query, -1, 2, filters);
+        return substructure (query, -1, 0, filters);
     }
 
     public ResultEnumeration substructure
@@ -1444,30 +2998,29 @@ public class StructureIndexer {
     protected ResultEnumeration substructure
         (IndexSearcher searcher, Chemical query,
          final int max, int nthreads, Query... filters) throws Exception {
+        return substructure (searcher, compile (searcher, query),
+                             max, nthreads, filters);
+    }
 
-        processQuery(query);        
-        Chemical copyr=processQueryForFP(query);
-        
-        Fingerprint qfp = fingerPrinterSub.computeFingerprint(copyr);
-        Fingerprint qfpSim = fingerPrinterSim.computeFingerprint(copyr);
-        
-        
+    /*
+     * candidates are verified in chunks on the indexer's fork/join pool,
+     * by at most nthreads workers at a time (the whole pool if <= 0)
+     */
+    protected ResultEnumeration substructure
+        (IndexSearcher searcher, CompiledQuery query,
+         final int max, int nthreads, Query... filters) throws Exception {
+        CodebookStats stats = getCodebookStats (searcher.getIndexReader());
         Codebook bestCb = null;
+        int[] bestCodes = null;
         int bestHits = Integer.MAX_VALUE;
         for (int i = 0; i < codebooks.length; ++i) {
-            Codebook cb = codebooks[i];
-            int[] eqv = cb.apply(qfp);
+            int[] eqv = query.codes[i];
             if (eqv != null) {
-                int hits = 0;
-                for (int j = 0; j < eqv.length; ++j) {
-                    hits += cb.count(eqv[j]);
-                }
-//                if(hits !=0){
-//                    System.out.println("code book "+ i + " hits = " + hits);
-//                }
-                if (/*hits !=0 &&*/ hits < bestHits) {
+                int hits = stats.count(i, eqv);
+                if (hits < bestHits) {
                     bestHits = hits;
-                    bestCb = cb;
+                    bestCb = codebooks[i];
+                    bestCodes = eqv;
                 }
             }
         }
@@ -1479,8 +3032,7 @@ public class StructureIndexer {
         }
         else {
             
-            int[] eqv = bestCb.apply(qfp);
-//            System.out.println("eqv = " + Arrays.toString(eqv));
+            int[] eqv = bestCodes;
             List<Query> queryList = new ArrayList<Query>();
             for (int j = 0; j < eqv.length; ++j) {
                 TermQuery tq = new TermQuery
@@ -1491,62 +3043,27 @@ public class StructureIndexer {
             q = mq;
         }
         
-        int total = searcher.getIndexReader().numDocs();
-        long start = System.currentTimeMillis();
         if (filters != null) {        	
             for (Query f : filters) {
             	q = addFilterToQuery(q, f);           	             
             }            
         }
-        TopDocs hits = searcher.search(q, total);
-        logger.info("## total screened: "+(total-hits.totalHits)+"/"+total
-                    +" screen efficiency: "
-                    +String.format("%1$.2f", 1.-(double)hits.totalHits/total)
-                    +" ellapsed: "
-                    +String.format("%1$.2fs",
-                                   (System.currentTimeMillis()-start)*1e-3));
         
-        final BlockingQueue<Payload> in = new LinkedBlockingQueue<Payload>();
         final BlockingQueue<Result> out = new ResultBlockingQueue<>();
-        final List<Future<Integer>> threads = new ArrayList<Future<Integer>>();
-        for (int i = 0; i < nthreads; ++i){
-        	IsoMorphismSearcher chemSearcher = new IsoMorphismSearcher(query);
-            threads.add(threadPool.submit
-                        (new GraphIso (in, out, chemSearcher, qfp, max,qfpSim)));
-        }
-        
-        for (int i = 0; i < hits.totalHits; ++i) {
-            Document doc = searcher.doc(hits.scoreDocs[i].doc);
-            in.put(new Payload (hits.scoreDocs[i].doc, doc));
-        }
-        for (int i = 0; i < nthreads; ++i)
-            in.put(POISON_PAYLOAD);
-
-        threadPool.submit(new Runnable () {
-                public void run () {
-                    try {                   
-                        int total = 0;
-                        for (Future<Integer> f : threads) {
-                        	try{
-                        		total += f.get();
-                        	}catch(Throwable ex){
-                        		//catch exception inside loop so
-                        		//not only do we keep getting the others
-                        		//but we eventually add the POISON_RESULT
-                        		//to the queue.
-                        		//otherwise, an exception will make this loop forever
-                        		ex.printStackTrace();
-                        	}
-                        }
-                        out.put(POISON_RESULT);
-                    }
-                    catch (Exception ex) {
-                        ex.printStackTrace();
-                    }
-                }
-            });
+        final SearchTask task = newSearchTask (max);
+        task.hold(searcher.getIndexReader());
+        /* the backend searcher can't be stopped once it has started on
+           a target, so anything with a budget goes through vf2 */
+        boolean vf2 = vf2Verification || targetStepLimit > 0
+            || targetTimeout > 0 || task.deadline != 0;
+        if (vf2 || !query.backend)
+            query.plan(matchOrder.frequencies(searcher.getIndexReader()));
+
+        verify (searcher, q, new SubstructureQuery
+                (query, targetStepLimit, targetTimeout, vf2, out, task),
+                nthreads);
         
-        return new ResultEnumeration (out);
+        return new ResultEnumeration (out, task);
     }
 
     public Query addFilterToQuery(Query query, Query filter) {
@@ -1589,14 +3106,42 @@ public class StructureIndexer {
         (Chemical query, final double threshold, 
          final int max, final int nthreads, Query... filters)
         throws Exception {
-        return similarity
-            (getIndexSearcher (), query, threshold, max, nthreads, filters);
+        return similarity (query, SimilarityMetric.TANIMOTO, threshold,
+                           max, nthreads, filters);
+    }
+
+    public ResultEnumeration similarity
+        (String query, SimilarityMetric metric, double threshold,
+         Query... filters) throws Exception {
+        return similarity (Chemical.parse(query), metric, threshold, filters);
+    }
+
+    public ResultEnumeration similarity
+        (Chemical query, SimilarityMetric metric, double threshold,
+         Query... filters) throws Exception {
+        return similarity (query, metric, threshold, -1, 2, filters);
+    }
+
+    public ResultEnumeration similarity
+        (Chemical query, SimilarityMetric metric, final double threshold,
+         final int max, final int nthreads, Query... filters)
+        throws Exception {
+        return similarity (getIndexSearcher (), query, metric,
+                           threshold, max, nthreads, filters);
     }
 
     protected ResultEnumeration similarity
         (IndexSearcher searcher, Chemical query, final double threshold,
          final int max, final int nthreads, Query... filters)
         throws Exception {
+        return similarity (searcher, query, SimilarityMetric.TANIMOTO,
+                           threshold, max, nthreads, filters);
+    }
+
+    protected ResultEnumeration similarity
+        (IndexSearcher searcher, Chemical query, SimilarityMetric metric,
+         final double threshold, final int max, final int nthreads,
+         Query... filters) throws Exception {
         /*
          * first calculate the minimum popcnt needed to satisfy the
          * cutoff:
@@ -1629,43 +3174,50 @@ public class StructureIndexer {
          *  
          *  Therefore |q|/tanimoto is a good pessimistic upperbound.
          *  
+         * other metrics work out their own window the same way (see
+         * SimilarityMetric).
          */
         processQuery(query);        
         Chemical copyr=processQueryForFP(query);
         Fingerprint q = fingerPrinterSim.computeFingerprint(copyr);
         int popcnt = q.populationCount();
 
-        int minpop = (int)(popcnt*threshold+0.5);
-        int maxpop = (int)(popcnt*(1.0/threshold)+0.5);
+        int minpop = metric.minPopcount(popcnt, threshold);
+        int maxpop = metric.maxPopcount(popcnt, threshold);
+
+        FingerprintMatrix matrix = fingerprintMatrix;
+        if (matrix != null && (filters == null || filters.length == 0)) {
+            try {
+                ResultEnumeration result = similarity
+                    (searcher, matrix, q, metric, minpop, maxpop,
+                     threshold, max, nthreads);
+                if (result != null)
+                    return result;
+            }
+            catch (IOException | IllegalArgumentException ex) {
+                logger.warning("Can't use fingerprint matrix; "
+                               +"falling back to range query: "+ex);
+            }
+        }
         Query range = NumericRangeQuery.newIntRange
             (FIELD_POPCNT, minpop, maxpop, true, true);
         if (filters != null) {        	
             for (Query f : filters)
             	range = addFilterToQuery(range, f);            
         }
-        long start = System.currentTimeMillis();
-        TopDocs hits = searcher.search
-            (range, searcher.getIndexReader().numDocs());
-        logger.info("## range query >="+minpop
-                    +": "+hits.totalHits+" ellapsed: "
-                    +String.format("%1$.2fs",
-                                   (System.currentTimeMillis()-start)*1e-3));
-        
         final BlockingQueue<Result> out = new ResultBlockingQueue<>();
-        final BlockingQueue<Payload> in = new LinkedBlockingQueue<Payload>();
+        final BlockingQueue<Payload> in = newPayloadQueue (nthreads);
+        final SearchTask task = newSearchTask (max);
+        task.hold(searcher.getIndexReader());
         final List<Future<Integer>> threads = new ArrayList<Future<Integer>>(); 
         for (int i = 0; i < nthreads; ++i)
             threads.add(threadPool.submit
-                        (new Tanimoto (in, out, q, max, threshold)));
-        
-        for (int i = 0; i < hits.totalHits; ++i) {
-            Document doc = searcher.doc(hits.scoreDocs[i].doc);
-            in.put(new Payload (hits.scoreDocs[i].doc, doc));
-        }
+                        (new Similarity (in, out, q.toByteArray(), metric,
+                                         task, threshold)));
+        screen (searcher, range, in, threads, task,
+                new BlockBound (q.toByteArray(), metric, threshold));
 
-        for (int i = 0; i < nthreads; ++i)
-            in.put(POISON_PAYLOAD);
-        threadPool.submit(new Runnable () {
+        screenPool.submit(new Runnable () {
                 public void run () {
                     try {
                         int total = 0;
@@ -1684,11 +3236,273 @@ public class StructureIndexer {
                         } catch (InterruptedException e) {
                             e.printStackTrace();
                         }
+                        task.release();
+                    }
+                }
+            });
+        
+        return new ResultEnumeration (out, task);
+    }
+
+    /*
+     * run the substructure screen on the screen pool, verifying the
+     * candidates on the fork/join pool as they're collected; the result
+     * queue is poisoned once every chunk has been verified
+     */
+    protected void verify (final IndexSearcher searcher, final Query q,
+                           final SubstructureQuery query, int nthreads) {
+        final ChunkQueue queue = new ChunkQueue
+            (query, verifyPool,
+             nthreads > 0 ? nthreads : verifyPool.getParallelism());
+        screenPool.submit(new Runnable () {
+                public void run () {
+                    long start = System.currentTimeMillis();
+                    ChunkCollector collector =
+                        new ChunkCollector (searcher, queue);
+                    try {
+                        searcher.search(new ConstantScoreQuery (q), collector);
+                        collector.dispatch();
+                        int total = searcher.getIndexReader().numDocs();
+                        logger.info
+                            ("## total screened: "+(total-collector.count)
+                             +"/"+total+" screen efficiency: "
+                             +String.format("%1$.2f", total > 0
+                                            ? 1.-(double)collector.count
+                                            /total : 0.)
+                             +" ellapsed: "
+                             +String.format
+                             ("%1$.2fs",
+                              (System.currentTimeMillis()-start)*1e-3));
+                    }
+                    catch (CollectionTerminatedException ex) {
+                        // cancelled while dispatching the last chunk
+                    }
+                    catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                    finally {
+                        queue.await();
+                        try {
+                            query.out.put(POISON_RESULT);
+                        }
+                        catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                        query.task.release();
+                    }
+                }
+            });
+    }
+
+    /*
+     * run the (constant score) screen on the screen pool, streaming the
+     * hits to the workers through a bounded queue as they're collected;
+     * the workers are poisoned once the screen is done
+     */
+    protected Future<Integer> screen (final IndexSearcher searcher,
+                                      final Query query,
+                                      final BlockingQueue<Payload> in,
+                                      final List<Future<Integer>> workers,
+                                      final SearchTask task) {
+        return screen (searcher, query, in, workers, task, null);
+    }
+
+    /*
+     * as above, with the candidates that can't reach the threshold
+     * according to their block popcounts dropped by the collector
+     */
+    protected Future<Integer> screen (final IndexSearcher searcher,
+                                      final Query query,
+                                      final BlockingQueue<Payload> in,
+                                      final List<Future<Integer>> workers,
+                                      final SearchTask task,
+                                      final BlockBound bound) {
+        return screenPool.submit(new Callable<Integer> () {
+                public Integer call () throws Exception {
+                    long start = System.currentTimeMillis();
+                    PayloadCollector collector = new PayloadCollector
+                        (searcher, in, workers, task, bound);
+                    try {
+                        searcher.search(new ConstantScoreQuery (query),
+                                        collector);
+                        int total = searcher.getIndexReader().numDocs();
+                        logger.info
+                            ("## total screened: "+(total-collector.getCount())
+                             +"/"+total+" screen efficiency: "
+                             +String.format("%1$.2f", total > 0
+                                            ? 1.-(double)collector.getCount()
+                                            /total : 0.)
+                             +(bound != null ? " pruned by block popcount: "
+                               +collector.pruned : "")
+                             +(collector.terminated ? " (terminated)" : "")
+                             +" ellapsed: "
+                             +String.format
+                             ("%1$.2fs",
+                              (System.currentTimeMillis()-start)*1e-3));
+                    }
+                    finally {
+                        for (int i = 0; i < workers.size()
+                                 && PayloadCollector.put
+                                 (in, POISON_PAYLOAD, workers); ++i)
+                            ;
+                    }
+                    return collector.getCount();
+                }
+            });
+    }
+
+    public ResultEnumeration similarityTopK
+        (String query, int k, Query... filters) throws Exception {
+        return similarityTopK (Chemical.parse(query), k, filters);
+    }
+
+    public ResultEnumeration similarityTopK
+        (Chemical query, int k, Query... filters) throws Exception {
+        return similarityTopK
+            (query, k, SimilarityMetric.TANIMOTO, filters);
+    }
+
+    public ResultEnumeration similarityTopK
+        (String query, int k, SimilarityMetric metric, Query... filters)
+        throws Exception {
+        return similarityTopK (Chemical.parse(query), k, metric, filters);
+    }
+
+    public ResultEnumeration similarityTopK
+        (Chemical query, int k, SimilarityMetric metric, Query... filters)
+        throws Exception {
+        return similarityTopK
+            (getIndexSearcher (), query, k, metric, filters);
+    }
+
+    /*
+     * the k most similar documents, best first. the popcount bands are
+     * visited outward from the query's popcount in order of the metric's
+     * upper bound (for Tanimoto min(|q|,|t|)/max(|q|,|t|)), one
+     * FIELD_POPCNT term query per band, and the search stops at the
+     * first band whose bound can't beat the k-th best hit so far. the
+     * results are only known once the search is over, so it runs on the
+     * calling thread.
+     */
+    protected ResultEnumeration similarityTopK
+        (IndexSearcher searcher, Chemical query, int k,
+         SimilarityMetric metric, Query... filters) throws Exception {
+        if (k <= 0)
+            throw new IllegalArgumentException ("Invalid k: "+k);
+        
+        processQuery(query);
+        Chemical copyr=processQueryForFP(query);
+        byte[] q = fingerPrinterSim.computeFingerprint(copyr).toByteArray();
+        int popcnt = popcnt (q);
+        // the fingerprint bytes are trimmed, so they don't give the
+        // largest popcount; the index does
+        Terms terms = MultiFields.getTerms
+            (searcher.getIndexReader(), FIELD_POPCNT);
+        int maxpop = terms != null ? NumericUtils.getMaxInt(terms) : -1;
+
+        final SearchTask task = newSearchTask (k);
+        TopKCollector collector =
+            new TopKCollector (searcher, q, metric, k, task);
+        int lo = popcnt, hi = popcnt+1, bands = 0;
+        while ((lo >= 0 || hi <= maxpop) && !task.isCancelled()) {
+            int pop;
+            if (hi > maxpop || (lo >= 0 && metric.bound(popcnt, lo)
+                                >= metric.bound(popcnt, hi)))
+                pop = lo--;
+            else
+                pop = hi++;
+            if (metric.bound(popcnt, pop) <= collector.cutoff())
+                break; // nothing further out can do better
+
+            Query band = NumericRangeQuery.newIntRange
+                (FIELD_POPCNT, pop, pop, true, true);
+            if (filters != null) {
+                for (Query f : filters)
+                    band = addFilterToQuery(band, f);
+            }
+            searcher.search(band, collector);
+            ++bands;
+        }
+        logger.fine("## top "+k+" similarity: "+bands+" popcount band(s)");
+
+        final BlockingQueue<Result> out = new ResultBlockingQueue<>();
+        task.hold(searcher.getIndexReader());
+        for (TopKCollector.Hit h : collector.heap)
+            out.put(new Result (new Payload (searcher, h.doc, null, null),
+                                h.similarity, null));
+        out.put(POISON_RESULT);
+        task.release();
+        return new ResultEnumeration (out, task);
+    }
+
+    /*
+     * bounded so that the memory held by a search depends on the number
+     * of workers rather than the number of candidates
+     */
+    static BlockingQueue<Payload> newPayloadQueue (int nworkers) {
+        return new ArrayBlockingQueue<Payload>
+            (PAYLOADS_PER_WORKER*Math.max(1, nworkers));
+    }
+
+    /*
+     * scan of the fingerprint matrix; null if it isn't ready for every
+     * segment of the searcher
+     */
+    protected ResultEnumeration similarity
+        (IndexSearcher searcher, FingerprintMatrix matrix, Fingerprint q,
+         SimilarityMetric metric, int minpop, int maxpop,
+         final double threshold,
+         final int max, final int nthreads) throws IOException {
+        long start = System.currentTimeMillis();
+        List<FingerprintMatrix.Slice> slices =
+            matrix.slices(searcher.getIndexReader(), minpop, maxpop);
+        if (slices == null)
+            return null; // not built yet
+        List<int[]> chunks = MatrixScan.chunks(slices);
+        int total = 0;
+        for (FingerprintMatrix.Slice s : slices)
+            total += s.size();
+        logger.info("## matrix window ["+minpop+","+maxpop+"]: "
+                    +total+" rows in "+chunks.size()+" chunk(s) ellapsed: "
+                    +String.format("%1$.2fs",
+                                   (System.currentTimeMillis()-start)*1e-3));
+
+        long[] query = FingerprintMatrix.pack
+            (q.toByteArray(), (q.toByteArray().length+7)/8);
+        final BlockingQueue<Result> out = new ResultBlockingQueue<>();
+        final AtomicInteger next = new AtomicInteger ();
+        final SearchTask task = newSearchTask (max);
+        task.hold(searcher.getIndexReader());
+        final List<Future<Integer>> threads = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < Math.min(nthreads, chunks.size()); ++i)
+            threads.add(threadPool.submit
+                        (new MatrixScan (searcher, slices, chunks, next,
+                                         out, query, metric, task,
+                                         threshold)));
+        
+        screenPool.submit(new Runnable () {
+                public void run () {
+                    try {
+                        for (Future<Integer> f : threads) {
+                            f.get();
+                        }
+                    }
+                    catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                    finally {
+                        try {
+                            out.put(POISON_RESULT);
+                        }
+                        catch (InterruptedException e) {
+                            e.printStackTrace();
+                        }
+                        task.release();
                     }
                 }
             });
         
-        return new ResultEnumeration (out);
+        return new ResultEnumeration (out, task);
     }
 
     public ResultEnumeration search (Query query) throws Exception {
@@ -1721,8 +3535,10 @@ public class StructureIndexer {
 
         final BlockingQueue<Result> out = new LinkedBlockingQueue<Result>();
         final BlockingQueue<Payload> in = new LinkedBlockingQueue<Payload>();
+        final SearchTask task = newSearchTask (max);
+        task.hold(searcher.getIndexReader());
         final Future<Integer> future =
-            threadPool.submit(new Output(in, out, max));
+            threadPool.submit(new Output(in, out, task));
         
         if (max <= 0)
             max = searcher.getIndexReader().numDocs();
@@ -1733,13 +3549,14 @@ public class StructureIndexer {
         }
         
         TopDocs hits = searcher.search(query, max);
-        for (int i = 0; i < hits.totalHits; ++i) {
-            Document doc = searcher.doc(hits.scoreDocs[i].doc);
-            in.put(new Payload (hits.scoreDocs[i].doc, doc));
+        FingerprintValues fpv = new FingerprintValues (searcher);
+        for (int i = 0; i < hits.scoreDocs.length
+                 && !task.isCancelled(); ++i) {
+            in.put(fpv.payload(hits.scoreDocs[i].doc));
         }
         in.put(POISON_PAYLOAD);
         
-        threadPool.submit(new Runnable () {
+        screenPool.submit(new Runnable () {
                 public void run () {
                     try {
                         int total = future.get();
@@ -1748,10 +3565,13 @@ public class StructureIndexer {
                     catch (Exception ex) {
                         ex.printStackTrace();
                     }
+                    finally {
+                        task.release();
+                    }
                 }
             });
         
-        return new ResultEnumeration (out);
+        return new ResultEnumeration (out, task);
     }
 
     public ResultEnumeration search (String query) throws Exception {
@@ -1783,19 +3603,22 @@ public class StructureIndexer {
         final BlockingQueue<Result> out = new LinkedBlockingQueue<Result>();
         final BlockingQueue<Payload> in = new LinkedBlockingQueue<Payload>();
         
+        final SearchTask task = newSearchTask (max);
+        task.hold(searcher.getIndexReader());
         final List<Future<Integer>> threads = new ArrayList<Future<Integer>>();
         for (int i = 0; i < nthreads; ++i)
-            threads.add(threadPool.submit(new Output(in, out, max)));
+            threads.add(threadPool.submit(new Output(in, out, task)));
         
-        for (int i = 0; i < hits.totalHits; ++i) {
-            Document doc = searcher.doc(hits.scoreDocs[i].doc);
-            in.put(new Payload (hits.scoreDocs[i].doc, doc));
+        FingerprintValues fpv = new FingerprintValues (searcher);
+        for (int i = 0; i < hits.scoreDocs.length
+                 && !task.isCancelled(); ++i) {
+            in.put(fpv.payload(hits.scoreDocs[i].doc));
         }
 
         for (int i = 0; i < nthreads; ++i)
             in.put(POISON_PAYLOAD);
         
-        threadPool.submit(new Runnable () {
+        screenPool.submit(new Runnable () {
                 public void run () {
                     try {
                         int total = 0;
@@ -1807,10 +3630,13 @@ public class StructureIndexer {
                     catch (Exception ex) {
                         ex.printStackTrace();
                     }
+                    finally {
+                        task.release();
+                    }
                 }
             });
         
-        return new ResultEnumeration (out);
+        return new ResultEnumeration (out, task);
     }
 
     protected int[] histogram (IndexSearcher searcher,
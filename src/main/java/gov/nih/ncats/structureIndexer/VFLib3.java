@@ -2,15 +2,12 @@ package gov.nih.ncats.structureIndexer;
 
 
 
-import java.util.Map;
-import java.util.HashMap;
-import java.util.BitSet;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 
 import gov.nih.ncats.molwitch.Atom;
 import gov.nih.ncats.molwitch.Bond;
-import gov.nih.ncats.molwitch.BondTable;
 import gov.nih.ncats.molwitch.Chemical;
 import gov.nih.ncats.molwitch.GraphInvariant;
 
@@ -22,6 +19,14 @@ public class VFLib3 {
    
     static final int EMPTY = -1;
 
+    /*
+     * query atoms without an atomic number (any atom, lists, R groups)
+     * match any atom
+     */
+    static boolean matches (int qz, int tz) {
+        return qz == tz || qz == 0;
+    }
+
     static class MatchPair {
         int qn, tn; // query node, target node
 
@@ -34,16 +39,16 @@ public class VFLib3 {
             this.tn = tn;
         }
 
-        MatchPair (MatchPair mp) {
-            this.qn = mp.qn;
-            this.tn = mp.tn;
-        }
-
         public String toString () {
             return "" + (qn + 1) + ":" + (tn + 1);
         }
     }
 
+    /*
+     * a single search state that's modified in place; add() pushes
+     * what's needed to undo it onto a stack and backtrack() pops it,
+     * so no state is ever copied during the search
+     */
     public interface State {
         boolean isAtomCompatible(int qn /*query*/, int tn /*target*/);
        
@@ -54,39 +59,147 @@ public class VFLib3 {
         boolean isDead();
         int getResultSize();
         int[] getResult();
-        void backtrack();
-        Object clone();
+        void backtrack(); // undo the last add()
+        int getQuerySize();
     }
 
+    /*
+     * called for each embedding found; returning true stops the search.
+     * result is the live mapping (query atom -> target atom) of the
+     * search state, so it has to be copied to be kept
+     */
     public interface MatchVisitor {
         boolean visit(int size, int[] result);
     }
 
     static class DefaultMatchVisitor implements MatchVisitor {
         List<int[]> hits = new ArrayList<int[]> ();
-        Map<BitSet, int[]> unique = new HashMap<BitSet, int[]> ();
 
         DefaultMatchVisitor () {
         }
 
         public boolean visit (int size, int[] result) {
-            BitSet bset = new BitSet ();
-            for (int i = 0; i < result.length; ++i) {
-                bset.set (result[i]);
-            }
-            if (!unique.containsKey (bset)) {
-                unique.put (bset, result);
-            }
-            hits.add (result);
+            hits.add (result.clone ());
             return false;
         }
 
         public int[][] getAllHits () {
             return hits.toArray (new int[0][]);
         }
+    }
+
+    static class FirstMatchVisitor implements MatchVisitor {
+        int[] hit;
+
+        public boolean visit (int size, int[] result) {
+            hit = result.clone ();
+            return true;
+        }
+    }
+
+    static class CountMatchVisitor implements MatchVisitor {
+        long count;
+
+        public boolean visit (int size, int[] result) {
+            ++count;
+            return false;
+        }
+    }
+
+    /*
+     * keeps the first embedding of each distinct set of target atoms,
+     * up to max of them. the sets are hashed order independently into
+     * a primitive open addressing table, so a repeated set costs no
+     * allocation; a hash hit is confirmed against the stored embedding.
+     */
+    static class UniqueMatchVisitor implements MatchVisitor {
+        final int max; // <= 0 for no limit
+        final List<int[]> hits = new ArrayList<int[]> ();
+        long[] keys = new long[16];
+        int[] slots = new int[16]; // index into hits + 1; 0 if empty
+        boolean[] mark = new boolean[64];
+
+        UniqueMatchVisitor (int max) {
+            this.max = max;
+        }
+
+        public boolean visit (int size, int[] result) {
+            long h = hash (result);
+            int mask = keys.length - 1;
+            int i = slot (h, mask);
+            for (; slots[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == h && same (hits.get (slots[i] - 1), result))
+                    return false;
+            }
+
+            hits.add (result.clone ());
+            keys[i] = h;
+            slots[i] = hits.size ();
+            if (2 * hits.size () > keys.length)
+                rehash ();
+            return max > 0 && hits.size () >= max;
+        }
+
+        static long hash (int[] result) {
+            long h = 0l;
+            for (int tn : result)
+                h += mix (tn);
+            return h;
+        }
+
+        /*
+         * splitmix64 finalizer
+         */
+        static long mix (long x) {
+            x += 0x9e3779b97f4a7c15l;
+            x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9l;
+            x = (x ^ (x >>> 27)) * 0x94d049bb133111ebl;
+            return x ^ (x >>> 31);
+        }
+
+        static int slot (long h, int mask) {
+            return (int) (h ^ (h >>> 32)) & mask;
+        }
+
+        boolean same (int[] a, int[] b) {
+            if (a.length != b.length)
+                return false;
+            for (int tn : a) {
+                if (tn >= mark.length)
+                    mark = Arrays.copyOf (mark, 2 * tn + 1);
+                mark[tn] = true;
+            }
+            boolean same = true;
+            for (int tn : b) {
+                if (tn >= mark.length || !mark[tn]) {
+                    same = false;
+                    break;
+                }
+            }
+            for (int tn : a)
+                mark[tn] = false;
+            return same;
+        }
+
+        void rehash () {
+            long[] k = keys;
+            int[] v = slots;
+            keys = new long[2 * k.length];
+            slots = new int[2 * v.length];
+            int mask = keys.length - 1;
+            for (int j = 0; j < k.length; ++j) {
+                if (v[j] != 0) {
+                    int i = slot (k[j], mask);
+                    while (slots[i] != 0)
+                        i = (i + 1) & mask;
+                    keys[i] = k[j];
+                    slots[i] = v[j];
+                }
+            }
+        }
 
-        public int[][] getUniqueHits () {
-            return unique.values ().toArray (new int[0][]);
+        public int[][] getHits () {
+            return hits.toArray (new int[0][]);
         }
     }
 
@@ -97,50 +210,46 @@ public class VFLib3 {
      */
     public static class VF2State implements State {
       
-    	Chemical query, target;
-        int origcorelen, corelen, qlen, tlen,
-                qmaplen, tmaplen;
+        // the search runs only on the compiled graphs, never on the
+        // Chemical object model
+        final MolGraph query, target;
+        int corelen, qlen, tlen, qmaplen, tmaplen;
         int[] qcore, tcore;
         int[] qmap, tmap;
         int[] order = null;
-        int qlastNode = EMPTY;
-
-        BondTable tbtab;
 
+        // undo stack of (query node, qmaplen, tmaplen) for each add()
+        int[] undo;
+        int sp;
 
         public VF2State (Chemical query, Chemical target) {
+            this (MolGraph.compile (query), query == target
+                  ? null : MolGraph.compile (target));
+        }
+
+        /*
+         * target is null for an automorphism
+         */
+        public VF2State (MolGraph query, MolGraph target) {
             this.query = query;
-            this.target = target;
+            this.target = target != null ? target : query;
            
             initVars ();
         }
 
-        public VF2State (VF2State s) { // copy constructor
-            query = s.query;
-            target = s.target;
-           
-            corelen = origcorelen = s.corelen;
-            qlen = s.qlen;
-            tlen = s.tlen;
-            qmaplen = s.qmaplen;
-            tmaplen = s.tmaplen;
-            qcore = s.qcore;
-            tcore = s.tcore;
-            qmap = s.qmap;
-            tmap = s.tmap;
-            order = s.order;
-            tbtab = s.tbtab;
-            qlastNode = EMPTY;
+        /*
+         * match the query atoms in this order (see MatchOrder)
+         */
+        public void setOrder (int[] order) {
+            if (order != null && order.length != qlen)
+                throw new IllegalArgumentException
+                    ("Order has "+order.length+" atoms; expecting "+qlen);
+            this.order = order;
         }
 
         void initVars () {
-            //really shouldn't do this unless needed
-            
-//        	query.aromatize();
-//        	target.aromatize();
-        	
-            qlen = query.getAtomCount ();
-            tlen = target.getAtomCount ();
+            qlen = query.size;
+            tlen = target.size;
 
             qcore = new int[qlen];
             tcore = new int[tlen];
@@ -156,37 +265,22 @@ public class VFLib3 {
                 tmap[i] = 0;
             }
 
-            origcorelen = 0;
             corelen = 0;
-            qlastNode = EMPTY;
-
-            tbtab = target.getBondTable();
+            undo = new int[3*qlen];
+            sp = 0;
         }
 
-        public boolean isBondCompatible(Bond qb, Bond tb){
-        	return qb.getBondType().equals(tb.getBondType());
+        /*
+         * a query bond without a type matches any bond
+         */
+        public boolean isBondCompatible(byte qb, byte tb){
+        	return qb == tb || qb == MolGraph.ANY_BOND;
         }
 
         public boolean isAtomCompatible (int qn, int tn) {
-            
-            Atom queryAtom = query.getAtom (qn);
-			Atom targetAtom = target.getAtom (tn);
-//			String aq=queryAtom.getSymbol();
-//			String at=targetAtom.getSymbol();
-			
-//
-			try {
-			return
-			queryAtom.getAtomicNumber() ==targetAtom.getAtomicNumber()
-        		&& ( queryAtom.getBonds().size() <= 1 || queryAtom.hasAromaticBond() == targetAtom.hasAromaticBond());
-			}catch(Exception e) {
-//			    e.printStackTrace();
-			    throw e;
-			}
-//
-//			return
-//					queryAtom.getAtomicNumber() ==targetAtom.getAtomicNumber()
-//                		&& queryAtom.hasAromaticBond() == targetAtom.hasAromaticBond();
+            return matches (query.anum[qn], target.anum[tn])
+                && (query.degree(qn) <= 1
+                    || query.arom[qn] == target.arom[tn]);
         }
 
        
@@ -210,6 +304,10 @@ public class VFLib3 {
             return qcore;
         }
 
+        public int getQuerySize () {
+            return qlen;
+        }
+
         public boolean next (MatchPair mp) {
             int qn = mp.qn;
             int tn = mp.tn;
@@ -222,18 +320,23 @@ public class VFLib3 {
             else
                 tn++;
 
-            if (qmaplen > corelen && tmaplen > corelen) {
+            if (order != null) {
+                // the matched atoms are always a prefix of the order and
+                // each atom but a component root has a neighbor before
+                // it, so the next one is a terminal atom whenever there
+                // are any
+                if (mp.qn == EMPTY) {
+                    int i = 0;
+                    while (i < qlen && qcore[order[i]] != EMPTY)
+                        i++;
+                    qn = i < qlen ? order[i] : qlen;
+                }
+            } else if (qmaplen > corelen && tmaplen > corelen) {
                 while (qn < qlen &&
                                (qcore[qn] != EMPTY || qmap[qn] == 0)) {
                     qn++;
                     tn = 0;
                 }
-            } else if (qn == 0 && order != null) {
-                int i = 0;
-                while (i < qlen && qcore[qn = order[i]] != EMPTY)
-                    i++;
-                if (i == qlen)
-                    qn = qlen;
             } else {
                 while (qn < qlen && qcore[qn] != EMPTY) {
                     qn++;
@@ -274,53 +377,37 @@ public class VFLib3 {
                 return false;
             }
 
-            BitSet qbs = new BitSet ();
-            BitSet tbs = new BitSet ();
-
-            Atom qa = query.getAtom (mp.qn);
-            Atom ta = target.getAtom (mp.tn);
-
             int qc = 0, tc = 0;
-            
-            for (Bond qb : qa.getBonds()) {               
-               
-                int xa = query.indexOf (qb.getOtherAtom (qa));
-               
+            for (int k = query.start[mp.qn]; k < query.start[mp.qn+1]; ++k) {
+                int xa = query.nbr[k];
                 if (qcore[xa] != EMPTY) {
-                    int a = qcore[xa];
-                    if (!tbtab.bondExists(a,mp.tn) || !isBondCompatible(qb, tbtab.getBond(a,mp.tn))){
-                   
-                        //System.out.print ("target " + (a + 1) + " " + (mp.tn + 1) + " " + tbtab[a][mp.tn]);
+                    int slot = target.slot (mp.tn, qcore[xa]);
+                    if (slot < 0 || !isBondCompatible
+                        (query.bond[k], target.bond[slot])){
                         return false;
                     }
-                } else {
-                    qbs.set (xa + 1);
-                    if (qmap[xa] != 0){
-                        //System.out.print (" qmap " + (xa + 1) + " = " + qmap[xa]);
-                        ++qc;
-                    }
+                } else if (qmap[xa] != 0){
+                    ++qc;
                 }
             }
 
-            for (Bond tb : ta.getBonds()) {               
-                int xa = target.indexOf (tb.getOtherAtom (ta));
-                if (tcore[xa] == EMPTY) {                   
-                    tbs.set (xa + 1);
-                    if (tmap[xa] != 0){                      
-                        //System.out.print (" tmap " + (xa + 1) + " = " + tmap[xa]);
-                        ++tc;
-                    }
+            for (int k = target.start[mp.tn]; k < target.start[mp.tn+1]; ++k) {
+                int xa = target.nbr[k];
+                if (tcore[xa] == EMPTY && tmap[xa] != 0) {
+                    ++tc;
                 }
             }
-            //System.out.print ("-- qc=" + qc + " tc=" + tc + " q=" + qbs + " t=" + tbs);
 
             // == isomorphism, <= sub graph isomorphism
             return qc <= tc;// && qnew <= tnew;
         }
 
         public void add (MatchPair mp) {
+            undo[sp++] = mp.qn;
+            undo[sp++] = qmaplen;
+            undo[sp++] = tmaplen;
+            
             ++corelen;
-            qlastNode = mp.qn;
 
             if (qmap[mp.qn] == 0) {
                 qmap[mp.qn] = corelen;
@@ -335,40 +422,38 @@ public class VFLib3 {
             qcore[mp.qn] = mp.tn;
             tcore[mp.tn] = mp.qn;
 
-            Atom qa = query.getAtom (mp.qn);
-            for (Bond b : qa.getBonds()) {
-                int xa = query.indexOf (b.getOtherAtom (qa));
+            for (int k = query.start[mp.qn]; k < query.start[mp.qn+1]; ++k) {
+                int xa = query.nbr[k];
                 if (qmap[xa] == 0) {
                     qmap[xa] = corelen;
                     ++qmaplen;
                 }
             }
 
-            Atom ta = target.getAtom (mp.tn);
-            for (Bond b : ta.getBonds()) {
-                int xa = target.indexOf (b.getOtherAtom (ta));
+            for (int k = target.start[mp.tn]; k < target.start[mp.tn+1]; ++k) {
+                int xa = target.nbr[k];
                 if (tmap[xa] == 0) {
                     tmap[xa] = corelen;
                     ++tmaplen;
                 }
             }
-            
-          
         }
 
         public void backtrack () {
-            if (origcorelen >= corelen) {
+            if (sp == 0) {
                 return;
             }
 
-            // origcorelen < corelen
+            tmaplen = undo[--sp];
+            qmaplen = undo[--sp];
+            int qlastNode = undo[--sp];
+
             if (qmap[qlastNode] == corelen) {
                 qmap[qlastNode] = 0;
             }
-
-            Atom qa = query.getAtom (qlastNode);
-            for (Bond b : qa.getBonds()) {
-                int xa = query.indexOf (b.getOtherAtom (qa));
+            for (int k = query.start[qlastNode];
+                 k < query.start[qlastNode+1]; ++k) {
+                int xa = query.nbr[k];
                 if (qmap[xa] == corelen) {
                     qmap[xa] = 0;
                 }
@@ -378,9 +463,9 @@ public class VFLib3 {
             if (tmap[tlastNode] == corelen){
                 tmap[tlastNode] = 0;
             }
-            Atom ta = target.getAtom (tlastNode);
-            for (Bond b : ta.getBonds()) {
-                int xa = target.indexOf (b.getOtherAtom (ta));
+            for (int k = target.start[tlastNode];
+                 k < target.start[tlastNode+1]; ++k) {
+                int xa = target.nbr[k];
                 if (tmap[xa] == corelen) {
                     tmap[xa] = 0;
                 }
@@ -388,13 +473,7 @@ public class VFLib3 {
 
             qcore[qlastNode] = EMPTY;
             tcore[tlastNode] = EMPTY;
-            corelen = origcorelen;
-            qlastNode = EMPTY;
-        }
-
-        @Override
-        public Object clone () {
-            return new VF2State (this);
+            --corelen;
         }
 
         public String toString () {
@@ -420,10 +499,8 @@ public class VFLib3 {
             super (query, target);
         }
 
-       
-
-        public VF2SubState (VF2SubState s) {
-            super (s);
+        public VF2SubState (MolGraph query, MolGraph target) {
+            super (query, target);
         }
 
         @Override
@@ -435,11 +512,167 @@ public class VFLib3 {
         public boolean isDead () {
             return qlen > tlen || qmaplen > tmaplen;
         }
+    }
 
-        @Override
-        public Object clone () {
-            return new VF2SubState (this);
+    /**
+     * ********************************************
+     * Subgraph isomorphism of graphs with at most 64 atoms
+     * *********************************************
+     */
+    /*
+     * same search as VF2SubState (same candidates in the same order, so
+     * the same embeddings), but the core and terminal sets and the
+     * neighborhoods are single long masks, so the feasibility counts are
+     * popcounts and the candidate scans skip straight to the next bit
+     */
+    public static class VF2BitState implements State {
+        public static final int MAX_SIZE = 64;
+
+        final MolGraph query, target;
+        final int qlen, tlen;
+        final long[] qadj, tadj;
+        final int[] qcore;
+        long qcoreset, tcoreset; // matched atoms
+        long qmapset, tmapset; // matched atoms and their neighbors
+        int corelen;
+        int[] order = null;
+
+        // undo stack of (query atom, qmapset, tmapset) for each add()
+        final int[] undoNode;
+        final long[] undoMap;
+        int sp;
+
+        public VF2BitState (MolGraph query, MolGraph target) {
+            if (query.size > MAX_SIZE || target.size > MAX_SIZE)
+                throw new IllegalArgumentException
+                    ("Graphs can't have more than "+MAX_SIZE+" atoms");
+            this.query = query;
+            this.target = target;
+            qlen = query.size;
+            tlen = target.size;
+            qadj = adjacency (query);
+            tadj = adjacency (target);
+            qcore = new int[qlen];
+            Arrays.fill (qcore, EMPTY);
+            undoNode = new int[qlen];
+            undoMap = new long[2*qlen];
+        }
+
+        static long[] adjacency (MolGraph g) {
+            long[] adj = new long[g.size];
+            for (int i = 0; i < g.size; ++i)
+                for (int k = g.start[i]; k < g.start[i+1]; ++k)
+                    adj[i] |= 1l << g.nbr[k];
+            return adj;
+        }
+
+        public void setOrder (int[] order) {
+            if (order != null && order.length != qlen)
+                throw new IllegalArgumentException
+                    ("Order has "+order.length+" atoms; expecting "+qlen);
+            this.order = order;
+        }
+
+        public boolean isAtomCompatible (int qn, int tn) {
+            return matches (query.anum[qn], target.anum[tn])
+                && (query.degree(qn) <= 1
+                    || query.arom[qn] == target.arom[tn]);
+        }
+
+        public boolean next (MatchPair mp) {
+            long qterm = qmapset & ~qcoreset;
+            long tterm = tmapset & ~tcoreset;
+            boolean terminal = qterm != 0 && tterm != 0;
+
+            int qn = mp.qn, tn;
+            if (qn == EMPTY) {
+                if (order != null) {
+                    int i = 0;
+                    while (i < qlen && qcore[order[i]] != EMPTY)
+                        i++;
+                    qn = i < qlen ? order[i] : qlen;
+                }
+                else {
+                    long free = terminal ? qterm : ~qcoreset & mask (qlen);
+                    qn = free != 0 ? Long.numberOfTrailingZeros (free) : qlen;
+                }
+                tn = 0;
+            }
+            else {
+                tn = mp.tn + 1;
+            }
+
+            long cand = (terminal ? tterm : ~tcoreset & mask (tlen))
+                & (tn < MAX_SIZE ? -1l << tn : 0l);
+            if (qn < qlen && cand != 0) {
+                mp.qn = qn;
+                mp.tn = Long.numberOfTrailingZeros (cand);
+                return true;
+            }
+            return false;
+        }
+
+        static long mask (int n) {
+            return n == MAX_SIZE ? -1l : (1l << n) - 1;
+        }
+
+        public boolean isFeasible (MatchPair mp) {
+            if (!isAtomCompatible (mp.qn, mp.tn))
+                return false;
+
+            for (int k = query.start[mp.qn]; k < query.start[mp.qn+1]; ++k) {
+                int xa = query.nbr[k];
+                if ((qcoreset & (1l << xa)) != 0) {
+                    int slot = target.slot (mp.tn, qcore[xa]);
+                    if (slot < 0 || (query.bond[k] != target.bond[slot]
+                                     && query.bond[k] != MolGraph.ANY_BOND))
+                        return false;
+                }
+            }
+
+            int qc = Long.bitCount (qadj[mp.qn] & qmapset & ~qcoreset);
+            int tc = Long.bitCount (tadj[mp.tn] & tmapset & ~tcoreset);
+            return qc <= tc;
+        }
+
+        public void add (MatchPair mp) {
+            undoNode[sp] = mp.qn;
+            undoMap[2*sp] = qmapset;
+            undoMap[2*sp+1] = tmapset;
+            ++sp;
+
+            ++corelen;
+            qcore[mp.qn] = mp.tn;
+            qcoreset |= 1l << mp.qn;
+            tcoreset |= 1l << mp.tn;
+            qmapset |= (1l << mp.qn) | qadj[mp.qn];
+            tmapset |= (1l << mp.tn) | tadj[mp.tn];
+        }
+
+        public void backtrack () {
+            if (sp == 0)
+                return;
+            --sp;
+            int qn = undoNode[sp];
+            qmapset = undoMap[2*sp];
+            tmapset = undoMap[2*sp+1];
+            qcoreset &= ~(1l << qn);
+            tcoreset &= ~(1l << qcore[qn]);
+            qcore[qn] = EMPTY;
+            --corelen;
+        }
+
+        public boolean isGoal () {
+            return corelen == qlen;
+        }
+
+        public boolean isDead () {
+            return qlen > tlen || Long.bitCount (qmapset) > Long.bitCount (tmapset);
         }
+
+        public int getResultSize () { return corelen; }
+        public int[] getResult () { return qcore; }
+        public int getQuerySize () { return qlen; }
     }
 
     /**
@@ -455,14 +688,8 @@ public class VFLib3 {
             grinv = mol.getGraphInvariant();
         }
 
-        public VF2AutoState (VF2AutoState s) {
-            super (s);
-            grinv = s.grinv;
-        }
-        
-
         @Override
-		public boolean isBondCompatible(Bond qb, Bond tb) {
+		public boolean isBondCompatible(byte qb, byte tb) {
 			return true;
 		}
 
@@ -470,13 +697,6 @@ public class VFLib3 {
         public boolean isAtomCompatible (int qn, int tn) {
             return grinv.isAtomCompatible(qn, tn);
         }
-
-     
-
-        @Override
-        public Object clone () {
-            return new VF2AutoState (this);
-        }
     }
 
     /**
@@ -484,24 +704,63 @@ public class VFLib3 {
      */
 
     protected State s;
+    protected final MatchPair[] pairs;
+
+    /*
+     * search budget; once either the number of states visited exceeds
+     * maxSteps or the (System.nanoTime) deadline has passed, the search
+     * is abandoned with whatever has been found so far
+     */
+    protected long maxSteps; // <= 0 for no limit
+    protected long deadline; // 0 for no deadline
+    protected long steps;
+    protected boolean exhausted;
 
     // can't instantiate this class directly; must use one of the static
     // methods
     protected VFLib3 (State s) {
         this.s = s;
+        // one cursor per level of the search
+        pairs = new MatchPair[s.getQuerySize ()+1];
+        for (int i = 0; i < pairs.length; ++i)
+            pairs[i] = new MatchPair ();
+    }
+
+    public VFLib3 setStepLimit (long maxSteps) {
+        this.maxSteps = maxSteps;
+        return this;
+    }
+
+    public VFLib3 setDeadline (long deadline) {
+        this.deadline = deadline;
+        return this;
     }
 
-    private static int[] clone (int[] result) {
-        int[] r = new int[result.length];
-        System.arraycopy (result, 0, r, 0, result.length);
-        return r;
+    /*
+     * true if the last search ran out of budget
+     */
+    public boolean isExhausted () { return exhausted; }
+    public long getSteps () { return steps; }
+
+    private boolean overBudget () {
+        ++steps;
+        // nanoTime isn't free, so the clock is only checked every so often
+        if ((maxSteps > 0 && steps > maxSteps)
+            || (deadline != 0 && (steps & 0xff) == 0
+                && System.nanoTime() - deadline > 0)) {
+            exhausted = true;
+        }
+        return exhausted;
     }
 
-    private boolean find (State s, MatchVisitor visitor) {
+    private boolean find (State s, MatchVisitor visitor, int depth) {
         //System.out.print (">>> " + s);
+        if (exhausted || overBudget ())
+            return true; // unwind
+
         if (s.isGoal ()) {
             //System.out.println (" => GOAL!");
-            return visitor.visit (s.getResultSize (), clone (s.getResult ()));
+            return visitor.visit (s.getResultSize (), s.getResult ());
         }
 
         if (s.isDead ()) {
@@ -511,7 +770,8 @@ public class VFLib3 {
 
         //System.out.println (" => ...");
 
-        MatchPair mp = new MatchPair ();
+        MatchPair mp = pairs[depth];
+        mp.qn = mp.tn = EMPTY;
         boolean found = false;
         while (!found && s.next (mp)) {
             //System.out.print (" ** ");
@@ -519,11 +779,10 @@ public class VFLib3 {
             //System.out.println (" " + s + " + " + mp + " => " + cont);
 
             if (cont) {
-                State s1 = (State) s.clone ();
-                s1.add (new MatchPair (mp));
-                found = find (s1, visitor);
-                s1.backtrack ();
-                //System.out.println ("<<< " + s1);
+                s.add (mp);
+                found = find (s, visitor, depth+1);
+                s.backtrack ();
+                //System.out.println ("<<< " + s);
             }
         }
 
@@ -531,7 +790,9 @@ public class VFLib3 {
     }
 
     public boolean find (MatchVisitor visitor) {
-        return find (s, visitor);
+        steps = 0;
+        exhausted = false;
+        return find (s, visitor, 0) && !exhausted;
     }
 
     public boolean match () {
@@ -547,21 +808,77 @@ public class VFLib3 {
     }
 
     public int[][] findAll (boolean unique) {
+        if (unique)
+            return findUnique (0);
         DefaultMatchVisitor visitor = new DefaultMatchVisitor ();
         find (visitor);
-        return unique ? visitor.getUniqueHits () : visitor.getAllHits ();
+        return visitor.getAllHits ();
+    }
+
+    /*
+     * the first embedding found, or null; the search stops there
+     */
+    public int[] findFirst () {
+        FirstMatchVisitor visitor = new FirstMatchVisitor ();
+        find (visitor);
+        return visitor.hit;
+    }
+
+    /*
+     * embeddings onto up to max (<= 0 for all) distinct sets of target
+     * atoms, in the order they're found
+     */
+    public int[][] findUnique (int max) {
+        UniqueMatchVisitor visitor = new UniqueMatchVisitor (max);
+        find (visitor);
+        return visitor.getHits ();
+    }
+
+    /*
+     * number of embeddings, without keeping any of them
+     */
+    public long count () {
+        CountMatchVisitor visitor = new CountMatchVisitor ();
+        find (visitor);
+        return visitor.count;
     }
 
 
 
     public static VFLib3 subgraphIsomorphism
         (Chemical query, Chemical target) {
-        return new VFLib3 (query == target ? new VF2AutoState (query)
-                           : new VF2SubState (query, target));
+        return query == target ? new VFLib3 (new VF2AutoState (query))
+            : subgraphIsomorphism (MolGraph.compile (query),
+                                   MolGraph.compile (target));
     }
 
    
 
+    /*
+     * the query is usually compiled once and matched against many
+     * targets
+     */
+    public static VFLib3 subgraphIsomorphism
+        (MolGraph query, MolGraph target) {
+        return subgraphIsomorphism (query, target, null);
+    }
+
+    /*
+     * graphs that fit in a long mask get the bit parallel state
+     */
+    public static VFLib3 subgraphIsomorphism
+        (MolGraph query, MolGraph target, int[] order) {
+        if (query.size <= VF2BitState.MAX_SIZE
+            && target.size <= VF2BitState.MAX_SIZE) {
+            VF2BitState s = new VF2BitState (query, target);
+            s.setOrder (order);
+            return new VFLib3 (s);
+        }
+        VF2SubState s = new VF2SubState (query, target);
+        s.setOrder (order);
+        return new VFLib3 (s);
+    }
+
     public static VFLib3 automorphism (Chemical mol) {
         return new VFLib3 (new VF2AutoState (mol));
     }
@@ -4,19 +4,40 @@ import static gov.nih.ncats.structureIndexer.StructureIndexer.FIELD_MOLWT;
 import static gov.nih.ncats.structureIndexer.StructureIndexer.FIELD_NATOMS;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import gov.nih.ncats.common.io.IOUtil;
 import org.apache.commons.io.IOUtils;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiDocValues;
+import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
 import org.junit.Test;
 
 import gov.nih.ncats.molwitch.Chemical;
+import gov.nih.ncats.structureIndexer.StructureIndexer.IndexRecord;
 import gov.nih.ncats.structureIndexer.StructureIndexer.Result;
 import gov.nih.ncats.structureIndexer.StructureIndexer.ResultEnumeration;
 
@@ -145,6 +166,945 @@ public class Junit4StructureIndexerTest extends AbstractStructureIndexerTest {
 
     }
 
+    @Test
+    public void pipelineShouldIndexAllRecords() throws Exception {
+        String[] smiles = {"c1ccccc1", "c1ccncc1", "OC1CCCC[C@H]1O",
+                           "CC(=O)Nc1ccc(cc1O)C(O)=O", "c1ncncc1",
+                           "Cc1cc(Cl)nc2N(C3CC3)c3ncccc3C(=O)Nc12"};
+        try (IndexPipeline pipeline = new IndexPipeline (indexer, 3, 2)) {
+            for (int i = 0; i < smiles.length; ++i) {
+                pipeline.add("pipe", "p"+i, Chemical.parse(smiles[i]));
+            }
+        }
+
+        assertEquals(smiles.length, indexer.size());
+        ResultEnumeration result =
+                indexer.similarity("O=C1NC2=C(NC3=NC=CC=C13)N=CC=C2", 0.55);
+        assertTrue(result.hasMoreElements());
+        assertEquals("p5", result.nextElement().getId());
+        assertFalse(result.hasMoreElements());
+    }
+
+    @Test(timeout = 60000)
+    public void pipelineShouldReportWriterFailures() throws Exception {
+        indexer.shutdown();
+        indexer = new StructureIndexer(tmpDir.getRoot(), false) {
+            @Override
+            protected void write(List<IndexRecord> batch) {
+                throw new IllegalStateException("write failed");
+            }
+        };
+        IndexPipeline pipeline = new IndexPipeline (indexer, 2, 1);
+        IOException error = null;
+        try {
+            for (int i = 0; i < 100; ++i)
+                pipeline.add("pipe", "p"+i, Chemical.parse("c1ccccc1"));
+        }
+        catch (IOException ex) {
+            error = ex;
+        }
+        try {
+            pipeline.close();
+        }
+        catch (IOException ex) {
+            error = ex;
+        }
+        assertTrue(error != null);
+        assertTrue(error.getCause() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void addAllShouldIndexAndCountCodebooks() throws Exception {
+        List<IndexRecord> records = new ArrayList<>();
+        records.add(new IndexRecord("batch", "benzene", Chemical.parse("c1ccccc1")));
+        records.add(new IndexRecord("batch", "toluene", Chemical.parse("Cc1ccccc1")));
+        records.add(new IndexRecord("batch", "hexane", Chemical.parse("CCCCCC")));
+
+        assertEquals(3, indexer.addAll(records, 2));
+        assertEquals(3, indexer.size());
+
+        StructureIndexer.CodebookStats stats = indexer.getCodebookStats();
+        int total = 0;
+        for (int i = 0; i < indexer.getCodebooks().length; ++i)
+            for (int j = 1; j < indexer.getCodebooks()[i].size(); ++j)
+                total += stats.count(i, j);
+        assertTrue(total > 0 && total <= 3*indexer.getCodebooks().length);
+
+        Set<String> ids = new HashSet<>();
+        ResultEnumeration result = indexer.substructure("c1ccccc1");
+        while (result.hasMoreElements())
+            ids.add(result.nextElement().getId());
+        assertEquals(new HashSet<>(Arrays.asList("benzene", "toluene")), ids);
+    }
+
+    @Test
+    public void codebooksShouldSurviveReopen() throws Exception {
+        indexer.add("foo", "one", "c1ccccc1");
+        StructureIndexer.Codebook[] before = indexer.getCodebooks();
+        indexer.shutdown();
+
+        assertTrue(new File(tmpDir.getRoot(), "codebook/"
+                            +StructureIndexer.CODEBOOK_SNAPSHOT).exists());
+        indexer = StructureIndexer.open(tmpDir.getRoot());
+        StructureIndexer.Codebook[] after = indexer.getCodebooks();
+        assertEquals(before.length, after.length);
+        Map<String, int[]> dicts = new HashMap<>();
+        for (StructureIndexer.Codebook cb : before)
+            dicts.put(cb.getName(), cb.getDictionary());
+        for (StructureIndexer.Codebook cb : after)
+            assertTrue(cb.getName(), Arrays.equals(dicts.get(cb.getName()), cb.getDictionary()));
+
+        ResultEnumeration result = indexer.substructure("c1ccccc1");
+        assertTrue(result.hasMoreElements());
+        assertEquals("one", result.nextElement().getId());
+    }
+
+    @Test
+    public void damagedSnapshotShouldFallBackToMetaIndex() throws Exception {
+        indexer.add("foo", "one", "c1ccccc1");
+        StructureIndexer.Codebook[] before = indexer.getCodebooks();
+        int[][] eqv = StructureIndexer.Codebook.equivalences(StructureIndexer.CODESIZE);
+        indexer.shutdown();
+
+        File snapshot = new File(tmpDir.getRoot(), "codebook/"
+                                 +StructureIndexer.CODEBOOK_SNAPSHOT);
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            raf.setLength(raf.length()/2);
+        }
+        indexer = StructureIndexer.open(tmpDir.getRoot());
+        StructureIndexer.Codebook[] after = indexer.getCodebooks();
+        assertEquals(before.length, after.length);
+        Map<String, int[]> dicts = new HashMap<>();
+        for (StructureIndexer.Codebook cb : before)
+            dicts.put(cb.getName(), cb.getDictionary());
+        for (StructureIndexer.Codebook cb : after)
+            assertTrue(cb.getName(), Arrays.equals(dicts.get(cb.getName()), cb.getDictionary()));
+        assertTrue(eqv == StructureIndexer.Codebook.equivalences(StructureIndexer.CODESIZE));
+
+        ResultEnumeration result = indexer.substructure("c1ccccc1");
+        assertTrue(result.hasMoreElements());
+    }
+
+    @Test
+    public void fingerprintsShouldBeReadFromDocValues() throws Exception {
+        createIndexerWithData();
+
+        IndexSearcher searcher = indexer.getIndexSearcher();
+        StructureIndexer.FingerprintValues fpv =
+            new StructureIndexer.FingerprintValues(searcher);
+        int maxDoc = searcher.getIndexReader().maxDoc();
+        assertTrue(maxDoc > 0);
+        for (int i = 0; i < maxDoc; ++i) {
+            StructureIndexer.Payload p = fpv.payload(i);
+            assertTrue(p.sub != null && p.sim != null);
+            assertTrue(p.doc == null);
+
+            // the fingerprints aren't stored a second time
+            assertTrue(searcher.doc(i).getBinaryValue(StructureIndexer.FIELD_FINGERPRINT_SIM) == null);
+            StructureIndexer.Payload lazy =
+                new StructureIndexer.Payload(searcher, i, null, null);
+            assertTrue(p.getFpSubBytes().length > 0);
+            assertTrue(Arrays.equals(lazy.getFpSubBytes(), p.getFpSubBytes()));
+            assertTrue(Arrays.equals(lazy.getFpSimBytes(), p.getFpSimBytes()));
+            assertTrue(p.doc == null);
+        }
+    }
+
+    @Test
+    public void resultsShouldLoadOnlyRequestedFields() throws Exception {
+        createIndexerWithData();
+
+        ResultEnumeration result = indexer.substructure("c1ccccc1");
+        assertTrue(result.hasMoreElements());
+        Result r = result.nextElement();
+        // matching only needed the molfile
+        assertEquals(Collections.singleton(StructureIndexer.FIELD_MOLFILE),
+                     r.payload.values.keySet());
+        assertEquals("one", r.getId());
+        assertEquals("foo", r.getSource());
+        assertEquals("one", r.getMol().getName());
+        // none of which needed the whole document
+        assertNull(r.payload.doc);
+        assertTrue(r.getDoc() != null);
+    }
+
+    @Test(timeout = 60000)
+    public void boundedScreenShouldStopOnceMaxIsReached() throws Exception {
+        // more candidates than the payload queue can hold
+        int n = 2*StructureIndexer.PAYLOADS_PER_WORKER + 10;
+        List<IndexRecord> records = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            StringBuilder smiles = new StringBuilder("c1ccccc1");
+            for (int j = 0; j <= i % 8; ++j)
+                smiles.append('C');
+            records.add(new IndexRecord("bulk", "r"+i,
+                                        Chemical.createFromSmiles(smiles.toString())));
+        }
+        indexer.addAll(records);
+
+        ResultEnumeration result = indexer.substructure("c1ccccc1", 2, 1);
+        int count = 0;
+        while (result.hasMoreElements()) {
+            result.nextElement();
+            ++count;
+        }
+        assertEquals(2, count);
+
+        result = indexer.substructure("c1ccccc1", 0, 2);
+        count = 0;
+        while (result.hasMoreElements()) {
+            result.nextElement();
+            ++count;
+        }
+        assertEquals(n, count);
+    }
+
+    @Test(timeout = 60000)
+    public void closingResultEnumerationShouldStopSearch() throws Exception {
+        List<IndexRecord> records = new ArrayList<>();
+        for (int i = 0; i < 3*StructureIndexer.PAYLOADS_PER_WORKER; ++i)
+            records.add(new IndexRecord("bulk", "r"+i,
+                                        Chemical.createFromSmiles("c1ccccc1CCO")));
+        indexer.addAll(records);
+
+        try (ResultEnumeration result = indexer.substructure("c1ccccc1")) {
+            assertTrue(result.hasMoreElements());
+            result.nextElement();
+            result.close();
+            assertTrue(result.task.isCancelled());
+            assertFalse(result.hasMoreElements());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void resultsShouldStreamBeforeTheSearchEnds() throws Exception {
+        StructureIndexer.ResultBlockingQueue<Integer> queue =
+            new StructureIndexer.ResultBlockingQueue<>(10000, 50);
+        queue.put(2);
+        queue.put(1);
+        // no poison, nowhere near full
+        assertEquals(Integer.valueOf(1), queue.take());
+        assertEquals(Integer.valueOf(2), queue.take());
+    }
+
+    @Test(timeout = 60000)
+    public void singleThreadedPoolShouldNotDeadlock() throws Exception {
+        indexer.shutdown();
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        try {
+            indexer = new StructureIndexer(tmpDir.getRoot(), false, pool);
+            createIndexerWithData();
+            for (ResultEnumeration result : Arrays.asList
+                     (indexer.similarity(Chemical.parse("c1ccccc1"), 0.1, -1, 4),
+                      indexer.substructure("c1ccccc1"),
+                      indexer.search("one", 0, 3))) {
+                int count = 0;
+                while (result.hasMoreElements()) {
+                    result.nextElement();
+                    ++count;
+                }
+                assertTrue(count > 0);
+            }
+        }
+        finally {
+            indexer.shutdown();
+            indexer = null;
+            pool.shutdown();
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void substructureShouldVerifyOnInjectedForkJoinPool() throws Exception {
+        indexer.shutdown();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            indexer = new StructureIndexer(tmpDir.getRoot(), false, pool);
+            List<IndexRecord> records = new ArrayList<>();
+            for (int i = 0; i < 200; ++i)
+                records.add(new IndexRecord("bulk", "r"+i, Chemical.createFromSmiles
+                                            (i % 2 == 0 ? "c1ccccc1CCO" : "C1CCCCC1CCO")));
+            indexer.addAll(records);
+
+            for (int nthreads : new int[]{1, 2, 0}) {
+                ResultEnumeration result = indexer.substructure("c1ccccc1", -1, nthreads);
+                int count = 0;
+                while (result.hasMoreElements()) {
+                    result.nextElement();
+                    ++count;
+                }
+                assertEquals("nthreads="+nthreads, 100, count);
+            }
+            indexer.shutdown();
+            indexer = null;
+            assertFalse(pool.isShutdown());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void isomorphismShouldGiveUpWhenOutOfBudget() throws Exception {
+        Chemical query = Chemical.createFromSmiles("C1CCCCC1");
+        Chemical target = Chemical.createFromSmiles("C1CCC2CCCCC2C1");
+
+        VFLib3 vf = VFLib3.subgraphIsomorphism(query, target);
+        assertTrue(vf.findAll(true).length > 0);
+        assertFalse(vf.isExhausted());
+
+        vf = VFLib3.subgraphIsomorphism(query, target).setStepLimit(3);
+        assertEquals(0, vf.findAll(true).length);
+        assertTrue(vf.isExhausted());
+        assertFalse(VFLib3.subgraphIsomorphism(query, target)
+                    .setStepLimit(3).match());
+    }
+
+    @Test(timeout = 60000)
+    public void chunksShouldBeSplitAcrossIdleWorkers() throws Exception {
+        createIndexerWithData();
+        StructureIndexer.CompiledQuery cq =
+            indexer.compile(Chemical.createFromSmiles("c1ccccc1"));
+        AtomicInteger verified = new AtomicInteger();
+        AtomicInteger active = new AtomicInteger(), busiest = new AtomicInteger();
+        StructureIndexer.SubstructureQuery query =
+            new StructureIndexer.SubstructureQuery
+            (cq, 0, 0, new ArrayBlockingQueue<>(1),
+             new StructureIndexer.SearchTask(0)) {
+                @Override
+                boolean verify(StructureIndexer.Payload p)
+                    throws InterruptedException {
+                    busiest.accumulateAndGet
+                        (active.incrementAndGet(), Math::max);
+                    Thread.sleep(5);
+                    active.decrementAndGet();
+                    verified.incrementAndGet();
+                    return false;
+                }
+            };
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            StructureIndexer.ChunkQueue queue =
+                new StructureIndexer.ChunkQueue(query, pool, 3);
+            assertEquals(12, queue.capacity);
+            StructureIndexer.Payload[] chunk = new StructureIndexer.Payload[64];
+            Arrays.fill(chunk, new StructureIndexer.Payload());
+            // a single chunk is still shared by the threads allowed,
+            // and by no more than those
+            assertTrue(queue.add(chunk));
+            queue.await();
+            assertEquals(64, verified.get());
+            assertTrue(busiest.toString(), busiest.get() > 1);
+            assertTrue(busiest.toString(), busiest.get() <= 3);
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void targetBudgetShouldApplyToTheBackendSearcherToo() throws Exception {
+        Chemical query = Chemical.createFromSmiles("C1CCCCC1");
+        Chemical target = Chemical.createFromSmiles("C1CCC2CCCCC2C1");
+
+        IsoMorphismSearcher iso = new IsoMorphismSearcher(query);
+        assertTrue(iso.findMax(target).length > 0);
+        assertFalse(iso.isTimedOut());
+
+        // the backend searcher can't be interrupted, so with a budget the
+        // target is matched by vf2 instead
+        iso.setTargetBudget(3, 0);
+        assertEquals(0, iso.findMax(target).length);
+        assertTrue(iso.isTimedOut());
+
+        MolGraph graph = MolGraph.compile(query);
+        iso = new IsoMorphismSearcher
+            (query, graph, MatchOrder.plan(graph, MatchOrder.DEFAULT), null)
+            .setTargetBudget(3, 0);
+        assertEquals(0, iso.findMax(target).length);
+        assertTrue(iso.isTimedOut());
+    }
+
+    /*
+     * 8x12 honeycomb; it has no odd rings, so an odd ring query has to
+     * try every path before it can give up
+     */
+    static final String HONEYCOMB =
+        "C1CC2CC3CC4CC5CC(C)C6C7C5C5C4C4C3C3C2C(C1)C1CCC2C8C1C3C3C4C4"
+        +"C5C5C7C(CC6)C6C7C5C5C4C4C3C8C8C3C2CCC2C3C3C1C8C4C4C5C5C7C(CC"
+        +"6)C6C7C5C5C4C1C1C4C3C3C2CCCC3CC4CC4C1C5C5C7C(CC6)C(CC5C4)C";
+
+    @Test
+    public void targetBudgetShouldCutOffPathologicalTargets() throws Exception {
+        String ring = "C1CCCCCCCCCCCCCCCCCC1";
+        indexer.add("xyz", "honeycomb", HONEYCOMB);
+        indexer.add("xyz", "ring", ring);
+
+        indexer.setTargetBudget(10000, 0);
+        ResultEnumeration result = indexer.substructure(ring);
+        Set<String> hits = new HashSet<>();
+        while (result.hasMoreElements())
+            hits.add(result.nextElement().getId());
+        // the honeycomb takes millions of steps to rule out
+        assertEquals(Collections.singleton("ring"), hits);
+        assertEquals(1, result.getTimedOutCount());
+        assertFalse(result.isExpired());
+    }
+
+    @Test
+    public void vf2ShouldFindAllMappings() throws Exception {
+        Chemical benzene = Chemical.createFromSmiles("c1ccccc1");
+        Chemical naphthalene = Chemical.createFromSmiles("c1ccc2ccccc2c1");
+        // bond orders are kekulized, so benzene only maps onto the ring
+        // of naphthalene whose bonds alternate the same way
+        assertEquals(1, VFLib3.subgraphIsomorphism(benzene, naphthalene)
+                     .findAll(true).length);
+        assertEquals(6, VFLib3.subgraphIsomorphism(benzene, naphthalene)
+                     .findAll(false).length);
+        assertEquals(12, VFLib3.automorphism(benzene).findAll(false).length);
+        assertFalse(VFLib3.subgraphIsomorphism(naphthalene, benzene).match());
+    }
+
+    @Test
+    public void matchOrderShouldStartWithRareAtomsAndStayConnected() throws Exception {
+        createIndexerWithData();
+        double[] freq = new MatchOrder()
+            .frequencies(indexer.getIndexSearcher().getIndexReader());
+        assertTrue(freq[6] > freq[7] && freq[6] > freq[16]);
+
+        Chemical query = Chemical.createFromSmiles("CCCSc1ccccc1N");
+        MolGraph graph = MolGraph.compile(query);
+        int[] order = MatchOrder.plan(graph, freq);
+        assertEquals(graph.size(), order.length);
+        // there's no sulfur in the index
+        assertEquals(16, graph.anum[order[0]]);
+        boolean[] placed = new boolean[graph.size()];
+        placed[order[0]] = true;
+        for (int i = 1; i < order.length; ++i) {
+            boolean connected = false;
+            for (int j = 0; j < graph.size(); ++j)
+                connected |= placed[j] && graph.slot(order[i], j) >= 0;
+            assertTrue(connected);
+            placed[order[i]] = true;
+        }
+
+        // a query atom without an element matches anything, so it
+        // doesn't go first
+        MolGraph any = new MolGraph(2, new int[]{0, 1, 2}, new int[]{1, 0},
+                                    new byte[2], new int[]{0, 6}, new byte[2]);
+        assertEquals(1, MatchOrder.plan(any, freq)[0]);
+
+        // the order changes how the mappings are found, not which
+        MolGraph target = MolGraph.compile
+            (Chemical.createFromSmiles("CCCSc1ccccc1NC(=O)c1ccccc1"));
+        assertEquals(VFLib3.subgraphIsomorphism(graph, target).findAll(false).length,
+                     VFLib3.subgraphIsomorphism(graph, target, order)
+                     .findAll(false).length);
+    }
+
+    @Test
+    public void searchReaderShouldBeHeldUntilResultsAreDone() throws Exception {
+        createIndexerWithData();
+        IndexReader reader = indexer.getIndexSearcher().getIndexReader();
+        ResultEnumeration result = indexer.substructure("c1ccncc1");
+        assertTrue(result.hasMoreElements());
+
+        // a newer reader replaces the one searched, which is released
+        // but stays open for the enumeration
+        indexer.add("xyz", "one", "CCO");
+        assertFalse(reader == indexer.getIndexSearcher().getIndexReader());
+        indexer.releaseReaders(-1);
+        assertTrue(reader.getRefCount() > 0);
+
+        Set<String> ids = new HashSet<>();
+        while (result.hasMoreElements()) {
+            Result r = result.nextElement();
+            ids.add(r.getSource()+":"+r.getId());
+            assertTrue(r.getMol().getAtomCount() > 0);
+        }
+        assertEquals(new HashSet<>(Arrays.asList("bar:one", "abc:two")), ids);
+        // and is closed once it's exhausted
+        assertEquals(0, reader.getRefCount());
+
+        reader = indexer.getIndexSearcher().getIndexReader();
+        result = indexer.substructure("c1ccncc1");
+        assertTrue(result.hasMoreElements());
+        indexer.add("xyz", "two", "CCN");
+        assertFalse(reader == indexer.getIndexSearcher().getIndexReader());
+        indexer.releaseReaders(-1);
+        result.close();
+        // closed as soon as the search has stopped too
+        for (int i = 0; i < 100 && reader.getRefCount() > 0; ++i)
+            Thread.sleep(50);
+        assertEquals(0, reader.getRefCount());
+    }
+
+    Set<String> substructureHits(String query) throws Exception {
+        Set<String> hits = new HashSet<>();
+        ResultEnumeration result = indexer.substructure(query);
+        while (result.hasMoreElements()) {
+            Result r = result.nextElement();
+            hits.add(r.getSource()+":"+r.getId());
+        }
+        return hits;
+    }
+
+    @Test
+    public void vf2VerificationShouldMatchBackendSearcher() throws Exception {
+        createIndexerWithData();
+        indexer.add("xyz", "one", "CC(=O)Oc1ccccc1C(O)=O");
+        indexer.add("xyz", "two", "C1CCC2CCCCC2C1");
+        String[] queries = {"c1ccncc1", "c1ccccc1", "C1CCCCC1", "CC(=O)N",
+                            "OC1CCCCC1O", "C(=O)O", "Clc1ccccn1"};
+        List<Set<String>> expected = new ArrayList<>();
+        for (String q : queries) {
+            expected.add(substructureHits(q));
+            assertFalse(q, expected.get(expected.size()-1).isEmpty());
+        }
+
+        indexer.setVF2Verification(true);
+        for (int i = 0; i < queries.length; ++i)
+            assertEquals(queries[i], expected.get(i), substructureHits(queries[i]));
+        // the plan was made for the search, from the index
+        IndexSearcher searcher = indexer.getIndexSearcher();
+        assertTrue(indexer.getCompiledQuery(searcher, "c1ccncc1").getGraph()
+                   != null);
+    }
+
+    @Test
+    public void repeatedQueriesShouldReuseCompiledQuery() throws Exception {
+        createIndexerWithData();
+        IndexSearcher searcher = indexer.getIndexSearcher();
+        StructureIndexer.CompiledQuery cq =
+            indexer.getCompiledQuery(searcher, "c1ccncc1");
+        assertTrue(cq == indexer.getCompiledQuery(searcher, "c1ccncc1"));
+        // verified by the cdk searcher, so there's no VF2 plan to build
+        assertNull(cq.getGraph());
+
+        Set<String> first = new HashSet<>(), second = new HashSet<>();
+        for (Set<String> hits : Arrays.asList(first, second)) {
+            ResultEnumeration result = indexer.substructure("c1ccncc1");
+            while (result.hasMoreElements()) {
+                Result r = result.nextElement();
+                hits.add(r.getSource()+":"+r.getId());
+            }
+        }
+        assertEquals(new HashSet<>(Arrays.asList("bar:one", "abc:two")), first);
+        assertEquals(first, second);
+        // the searchers went back to the query once the tasks were done
+        assertFalse(cq.searchers.isEmpty());
+        assertTrue(cq.searchers.size()
+                   <= Runtime.getRuntime().availableProcessors());
+
+        indexer.setQueryCacheSize(0);
+        assertFalse(cq == indexer.getCompiledQuery(searcher, "c1ccncc1"));
+    }
+
+    @Test
+    public void vf2EnumerationModesShouldStopEarly() throws Exception {
+        Chemical benzene = Chemical.createFromSmiles("c1ccccc1");
+        Chemical terphenyl =
+            Chemical.createFromSmiles("c1ccc(cc1)-c1ccc(cc1)-c1ccccc1");
+        int[][] all = VFLib3.subgraphIsomorphism(benzene, terphenyl).findAll(false);
+        int[][] unique = VFLib3.subgraphIsomorphism(benzene, terphenyl).findUnique(0);
+        assertEquals(all.length, VFLib3.subgraphIsomorphism(benzene, terphenyl).count());
+        assertEquals(3, unique.length);
+        assertTrue(all.length > unique.length);
+
+        Set<Set<Integer>> sets = new HashSet<>();
+        for (int[] hit : unique) {
+            Set<Integer> atoms = new HashSet<>();
+            for (int a : hit)
+                atoms.add(a);
+            sets.add(atoms);
+        }
+        assertEquals(3, sets.size());
+
+        VFLib3 vf = VFLib3.subgraphIsomorphism(benzene, terphenyl);
+        assertEquals(2, vf.findUnique(2).length);
+        long steps = vf.getSteps();
+        assertEquals(6, vf.findFirst().length);
+        assertTrue(vf.getSteps() < steps);
+        assertEquals(null, VFLib3.subgraphIsomorphism(terphenyl, benzene).findFirst());
+    }
+
+    @Test
+    public void untypedQueryBondShouldMatchAnyBond() throws Exception {
+        // C~C
+        MolGraph q = new MolGraph(2, new int[]{0, 1, 2}, new int[]{1, 0},
+                                  new byte[]{MolGraph.ANY_BOND, MolGraph.ANY_BOND},
+                                  new int[]{6, 6}, new byte[2]);
+        for (String smiles : new String[]{"CC", "C=C", "C#C"}) {
+            MolGraph t = MolGraph.compile(Chemical.createFromSmiles(smiles));
+            assertEquals(smiles, 2L, new VFLib3(new VFLib3.VF2SubState(q, t)).count());
+            assertEquals(smiles, 2L, VFLib3.subgraphIsomorphism(q, t).count());
+        }
+        MolGraph t = MolGraph.compile(Chemical.createFromSmiles("CO"));
+        assertFalse(VFLib3.subgraphIsomorphism(q, t).match());
+    }
+
+    @Test
+    public void queryAtomWithoutElementShouldMatchAnyAtom() throws Exception {
+        // C-*
+        MolGraph q = new MolGraph(2, new int[]{0, 1, 2}, new int[]{1, 0},
+                                  new byte[]{MolGraph.ANY_BOND, MolGraph.ANY_BOND},
+                                  new int[]{6, 0}, new byte[2]);
+        for (String smiles : new String[]{"CO", "CN", "CCl"}) {
+            MolGraph t = MolGraph.compile(Chemical.createFromSmiles(smiles));
+            assertTrue(smiles, new VFLib3(new VFLib3.VF2SubState(q, t)).match());
+            assertTrue(smiles, VFLib3.subgraphIsomorphism(q, t).match());
+        }
+        MolGraph t = MolGraph.compile(Chemical.createFromSmiles("NO"));
+        assertFalse(VFLib3.subgraphIsomorphism(q, t).match());
+    }
+
+    @Test
+    public void bitParallelVf2ShouldMatchGeneralEngine() throws Exception {
+        String[][] pairs = {
+            {"c1ccccc1", "c1ccc(cc1)-c1ccc(cc1)-c1ccccc1"},
+            {"CC(=O)N", "CC(=O)Nc1ccc(cc1O)C(O)=O"},
+            {"c1ccncc1", "Cc1cc(Cl)nc2N(C3CC3)c3ncccc3C(=O)Nc12"},
+            {"C1CC1", "Cc1cc(Cl)nc2N(C3CC3)c3ncccc3C(=O)Nc12"},
+            {"OC1CCCCC1O", "c1ccccc1"},
+            // 66 atoms, so the general engine is used for the target
+            {"CCCC", "CCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCCC"}
+        };
+        for (String[] p : pairs) {
+            MolGraph q = MolGraph.compile(Chemical.createFromSmiles(p[0]));
+            MolGraph t = MolGraph.compile(Chemical.createFromSmiles(p[1]));
+            int[] order = MatchOrder.plan(q, MatchOrder.DEFAULT);
+            for (int[] o : Arrays.asList(null, order)) {
+                VFLib3.VF2SubState general = new VFLib3.VF2SubState(q, t);
+                general.setOrder(o);
+                int[][] expected = new VFLib3(general).findAll(false);
+                int[][] actual = VFLib3.subgraphIsomorphism(q, t, o).findAll(false);
+                assertEquals(p[1], expected.length, actual.length);
+                for (int i = 0; i < expected.length; ++i)
+                    assertTrue(Arrays.equals(expected[i], actual[i]));
+            }
+        }
+    }
+
+    @Test
+    public void elementCountsShouldScreenCandidates() throws Exception {
+        byte[] target = ElementCounts.encode(ElementCounts.pairs("C200H3Cl2N3O"));
+        assertTrue(ElementCounts.covers(target, ElementCounts.pairs("C150Cl2N")));
+        assertTrue(ElementCounts.covers(target, new int[0]));
+        assertFalse(ElementCounts.covers(target, ElementCounts.pairs("C201")));
+        assertFalse(ElementCounts.covers(target, ElementCounts.pairs("Cl3")));
+        assertFalse(ElementCounts.covers(target, ElementCounts.pairs("S")));
+        // hydrogens don't count
+        assertTrue(ElementCounts.covers(target, ElementCounts.pairs("CH4")));
+
+        indexer.add("one", "Clc1ccc(Cl)cc1");
+        indexer.add("two", "Clc1ccccc1");
+        Set<String> actual = new HashSet<>();
+        ResultEnumeration result = indexer.substructure("Clc1ccc(Cl)cc1");
+        while (result.hasMoreElements())
+            actual.add(result.nextElement().getId());
+        assertEquals(Collections.singleton("one"), actual);
+    }
+
+    @Test
+    public void compiledQueryShouldBeReusedAcrossTargets() throws Exception {
+        MolGraph query = MolGraph.compile(Chemical.createFromSmiles("c1ccccc1"));
+        assertEquals(6, query.size());
+        assertEquals(2, query.degree(0));
+        MolGraph naphthalene =
+            MolGraph.compile(Chemical.createFromSmiles("c1ccc2ccccc2c1"));
+        MolGraph pyridine = MolGraph.compile(Chemical.createFromSmiles("c1ccncc1"));
+        for (int i = 0; i < 2; ++i) {
+            assertEquals(6, VFLib3.subgraphIsomorphism(query, naphthalene)
+                         .findAll(false).length);
+            assertFalse(VFLib3.subgraphIsomorphism(query, pyridine).match());
+        }
+    }
+
+    Map<String, Double> similarities(String query, double threshold) throws Exception {
+        return similarities(query, SimilarityMetric.TANIMOTO, threshold);
+    }
+
+    Map<String, Double> similarities(String query, SimilarityMetric metric,
+                                     double threshold) throws Exception {
+        Map<String, Double> hits = new HashMap<>();
+        ResultEnumeration result = indexer.similarity(query, metric, threshold);
+        while (result.hasMoreElements()) {
+            Result r = result.nextElement();
+            hits.put(r.getSource()+":"+r.getId(), r.getSimilarity());
+        }
+        return hits;
+    }
+
+    @Test
+    public void similarityThresholdsShouldNotLoseHits() throws Exception {
+        createIndexerWithData();
+        indexer.add("xyz", "one", "CC(=O)Oc1ccccc1C(O)=O");
+        indexer.add("xyz", "two", "Nc1ccc(cc1)S(N)(=O)=O");
+
+        for (String q : new String[]{"c1ccccc1", "CC(=O)Nc1ccccc1",
+                                     "Nc1ccccc1"}) {
+            Map<String, Double> everything = similarities(q, 0.01);
+            for (double t : new double[]{0.3, 0.5, 0.7}) {
+                Map<String, Double> expected = new HashMap<>();
+                for (Map.Entry<String, Double> e : everything.entrySet())
+                    if (e.getValue() >= t)
+                        expected.put(e.getKey(), e.getValue());
+                assertEquals(q+" "+t, expected, similarities(q, t));
+            }
+        }
+    }
+
+    @Test
+    public void blockBoundShouldPruneWithoutLosingHits() throws Exception {
+        String[] smiles = {
+            "CC(=O)Oc1ccccc1C(O)=O", "CC(=O)Nc1ccc(O)cc1",
+            "CC(C)Cc1ccc(cc1)C(C)C(O)=O", "Cn1cnc2n(C)c(=O)n(C)c(=O)c12",
+            "Nc1ccc(cc1)S(N)(=O)=O", "CCOC(=O)c1ccc(N)cc1",
+            "CN1CCCC1c1cccnc1", "OC(=O)c1ccccc1O", "CCOc1ccc(NC(C)=O)cc1",
+            "CCN(CC)CC(=O)Nc1c(C)cccc1C", "CCN(CC)CCOC(=O)c1ccc(N)cc1",
+            "COc1ccc2cc(ccc2c1)C(C)C(O)=O", "CN(C)CCOC(c1ccccc1)c1ccccc1",
+            "Cn1c(=O)n(C)c2nc[nH]c2c1=O", "COC(=O)c1ccc(O)cc1"
+        };
+        for (int i = 0; i < smiles.length; ++i)
+            indexer.add("drugs", "d"+i, smiles[i]);
+
+        IndexSearcher searcher = indexer.getIndexSearcher();
+        IndexReader reader = searcher.getIndexReader();
+        BinaryDocValues blocks = MultiDocValues.getBinaryValues
+            (reader, StructureIndexer.FIELD_POPCNT_BLOCKS);
+        StructureIndexer.FingerprintValues fpv =
+            new StructureIndexer.FingerprintValues(searcher);
+        SimilarityMetric metric = SimilarityMetric.TANIMOTO;
+        double t = 0.7;
+        int pruned = 0;
+        for (int d = 0; d < reader.maxDoc(); ++d) {
+            byte[] q = fpv.payload(d).getFpSimBytes();
+            StructureIndexer.BlockBound bound =
+                new StructureIndexer.BlockBound(q, metric, t);
+            // the bound holds for every target
+            for (int e = 0; e < reader.maxDoc(); ++e) {
+                assertTrue(bound.bound(blocks.get(e)) >= metric.similarity
+                           (q, fpv.payload(e).getFpSimBytes()));
+            }
+
+            // and rules out targets the popcount window lets through
+            int popcnt = StructureIndexer.popcnt(q);
+            Query range = NumericRangeQuery.newIntRange
+                (StructureIndexer.FIELD_POPCNT, metric.minPopcount(popcnt, t),
+                 metric.maxPopcount(popcnt, t), true, true);
+            StructureIndexer.PayloadCollector collector =
+                new StructureIndexer.PayloadCollector
+                (searcher, new ArrayBlockingQueue<>(reader.maxDoc()),
+                 new ArrayList<>(), new StructureIndexer.SearchTask(0), bound);
+            searcher.search(range, collector);
+            assertEquals(searcher.count(range),
+                         collector.getCount() + collector.pruned);
+            pruned += collector.pruned;
+        }
+        assertTrue(pruned > 0);
+
+        for (String q : smiles) {
+            Map<String, Double> expected = new HashMap<>();
+            for (Map.Entry<String, Double> e : similarities(q, 0.01).entrySet())
+                if (e.getValue() >= t)
+                    expected.put(e.getKey(), e.getValue());
+            assertEquals(q, expected, similarities(q, t));
+        }
+    }
+
+    @Test
+    public void similarityMetricsShouldKeepEveryHitInTheirWindow() throws Exception {
+        SimilarityMetric[] metrics = {
+            SimilarityMetric.TANIMOTO, SimilarityMetric.DICE,
+            SimilarityMetric.COSINE, SimilarityMetric.tversky(0.9, 0.1),
+            SimilarityMetric.tversky(1, 0), SimilarityMetric.tversky(0, 1)
+        };
+        // the window holds the popcounts whose bound reaches T, give or
+        // take rounding
+        for (SimilarityMetric m : metrics)
+            for (int q = 1; q <= 64; ++q)
+                for (int i = 1; i < 20; ++i) {
+                    double t = i/20.;
+                    for (int p = 0; p <= 256; ++p) {
+                        boolean in = m.minPopcount(q, t) <= p
+                            && p <= m.maxPopcount(q, t);
+                        assertTrue(m+" "+q+" "+p+" "+t,
+                                   in ? m.bound(q, p) >= t - 1e-9
+                                   : m.bound(q, p) < t);
+                    }
+                }
+
+        createIndexerWithData();
+        indexer.add("xyz", "one", "CC(=O)Oc1ccccc1C(O)=O");
+        for (String q : new String[]{"c1ccccc1", "CC(=O)Nc1ccccc1"}) {
+            Map<String, Double> tanimoto = similarities(q, 0.);
+            Map<String, Double> dice = similarities(q, SimilarityMetric.DICE, 0.);
+            assertEquals(tanimoto.keySet(), dice.keySet());
+            for (Map.Entry<String, Double> e : tanimoto.entrySet())
+                assertEquals(2*e.getValue()/(1+e.getValue()),
+                             dice.get(e.getKey()), 1e-9);
+
+            for (SimilarityMetric m : metrics) {
+                Map<String, Double> everything = similarities(q, m, 0.);
+                assertEquals(tanimoto.keySet(), everything.keySet());
+                for (double t : new double[]{0.3, 0.6, 0.8}) {
+                    Map<String, Double> expected = new HashMap<>();
+                    for (Map.Entry<String, Double> e : everything.entrySet())
+                        if (e.getValue() >= t)
+                            expected.put(e.getKey(), e.getValue());
+                    assertEquals(m+" "+q+" "+t, expected, similarities(q, m, t));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void topKShouldReturnTheMostSimilar() throws Exception {
+        createIndexerWithData();
+        for (String q : new String[]{"c1ccccc1", "CC(=O)Nc1ccccc1"}) {
+            List<Double> expected = new ArrayList<>(similarities(q, 0.01).values());
+            expected.sort(Collections.reverseOrder());
+
+            List<Double> actual = new ArrayList<>();
+            ResultEnumeration result = indexer.similarityTopK(q, 3);
+            while (result.hasMoreElements())
+                actual.add(result.nextElement().getSimilarity());
+            assertEquals(expected.subList(0, 3), actual);
+        }
+
+        Set<String> ids = new HashSet<>();
+        ResultEnumeration result = indexer.similarityTopK("c1ccccc1", 10);
+        while (result.hasMoreElements()) {
+            Result r = result.nextElement();
+            ids.add(r.getSource()+":"+r.getId());
+        }
+        assertEquals(6, ids.size());
+    }
+
+    @Test
+    public void fingerprintMatrixShouldMatchRangeQuery() throws Exception {
+        createIndexerWithData();
+        String[] queries = {"c1ccccc1", "O=C1NC2=C(NC3=NC=CC=C13)N=CC=C2",
+                            "CC(=O)Nc1ccccc1"};
+        List<Map<String, Double>> expected = new ArrayList<>();
+        for (String q : queries)
+            expected.add(similarities(q, 0.3));
+        assertTrue(expected.get(0).containsKey("foo:one"));
+
+        indexer.setFingerprintMatrix(true);
+        // the index is searched until the matrices have been built
+        for (int i = 0; i < queries.length; ++i)
+            assertEquals(queries[i], expected.get(i), similarities(queries[i], 0.3));
+        awaitFingerprintMatrix();
+        for (int i = 0; i < queries.length; ++i)
+            assertEquals(queries[i], expected.get(i), similarities(queries[i], 0.3));
+
+        // deletes and new segments must be picked up; files this
+        // indexer didn't build are left alone
+        File foreign = new File(tmpDir.getRoot(), "fpmatrix/_x_0"
+                                + FingerprintMatrix.SUFFIX);
+        assertTrue(foreign.createNewFile());
+        indexer.remove("foo", "one");
+        indexer.add("xyz", "benzene", "c1ccccc1");
+        similarities("c1ccccc1", 0.3);
+        awaitFingerprintMatrix();
+        Map<String, Double> hits = similarities("c1ccccc1", 0.3);
+        assertTrue(foreign.exists());
+        assertFalse(hits.containsKey("foo:one"));
+        assertTrue(hits.containsKey("xyz:benzene"));
+        indexer.setFingerprintMatrix(false);
+        assertEquals(similarities("c1ccccc1", 0.3), hits);
+    }
+
+    /*
+     * wait for the matrices of the current segments to be built
+     */
+    void awaitFingerprintMatrix() throws Exception {
+        File dir = new File(tmpDir.getRoot(), "fpmatrix");
+        long end = System.currentTimeMillis() + 30000;
+        for (LeafReaderContext ctx :
+                 indexer.getIndexSearcher().getIndexReader().leaves()) {
+            File f = new File(dir, FingerprintMatrix.name(ctx.reader())
+                              + FingerprintMatrix.SUFFIX);
+            while (!f.exists()) {
+                assertTrue("No matrix "+f, System.currentTimeMillis() < end);
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    @Test
+    public void fingerprintMatrixShouldNotBeBuiltWhenReadOnly() throws Exception {
+        createIndexerWithData();
+        indexer.shutdown();
+
+        indexer = StructureIndexer.openReadOnly(tmpDir.getRoot());
+        indexer.setFingerprintMatrix(true);
+        ResultEnumeration result = indexer.similarity("c1ccccc1", 0.3);
+        assertTrue(result.hasMoreElements());
+        indexer.shutdown();
+        indexer = null;
+        String[] files = new File(tmpDir.getRoot(), "fpmatrix").list();
+        assertTrue(files == null || files.length == 0);
+    }
+
+    @Test
+    public void failedFingerprintMatrixShouldBeRetried() throws Exception {
+        createIndexerWithData();
+        IndexReader reader = indexer.getIndexSearcher().getIndexReader();
+        int[] builds = new int[1];
+        FingerprintMatrix matrix = new FingerprintMatrix
+            (tmpDir.newFolder("fpm"), false, Runnable::run) {
+                @Override
+                void build(LeafReader leaf, File file) throws IOException {
+                    if (builds[0]++ == 0)
+                        throw new IOException("disk full");
+                    super.build(leaf, file);
+                }
+            };
+        assertNull(matrix.slices(reader, 0, Integer.MAX_VALUE));
+        // not before the retry delay is up
+        assertNull(matrix.slices(reader, 0, Integer.MAX_VALUE));
+        assertEquals(1, builds[0]);
+
+        Thread.sleep(FingerprintMatrix.RETRY_DELAY + 100);
+        assertNull(matrix.slices(reader, 0, Integer.MAX_VALUE));
+        assertEquals(2, builds[0]);
+        List<FingerprintMatrix.Slice> slices =
+            matrix.slices(reader, 0, Integer.MAX_VALUE);
+        assertTrue(slices != null && !slices.isEmpty());
+        assertTrue(matrix.failures.isEmpty());
+        matrix.close();
+    }
+
+    @Test
+    public void fingerprintMatrixSizeShouldNotOverflow() throws Exception {
+        // 100M rows of 1024 bits don't fit in a single mapped buffer
+        long length = FingerprintMatrix.length(16, 1024, 100000000);
+        assertTrue(length > Integer.MAX_VALUE);
+        // header, offsets and docs padded to 8128 bytes, then the rows
+        assertEquals(8128 + 8*1000*16, FingerprintMatrix.length(16, 1024, 1000));
+    }
+
+    @Test
+    public void readOnlyMemoryMappedIndexShouldBeSearchable() throws Exception {
+        createIndexerWithData();
+        indexer.shutdown();
+
+        indexer = StructureIndexer.openReadOnly
+            (tmpDir.getRoot(), DirectoryFactory.MMAP_PRELOAD);
+        assertEquals(6, indexer.size());
+        ResultEnumeration result = indexer.substructure("c1ccccc1");
+        Set<String> ids = new HashSet<>();
+        while (result.hasMoreElements())
+            ids.add(result.nextElement().getId());
+        assertTrue(ids.toString(), ids.contains("one"));
+
+        result = indexer.similarity("O=C1NC2=C(NC3=NC=CC=C13)N=CC=C2", 0.55);
+        assertTrue(result.hasMoreElements());
+        assertEquals("two", result.nextElement().getId());
+    }
+
     @Test
     public void similaritySearchWithOnly1Result() throws Exception {
 